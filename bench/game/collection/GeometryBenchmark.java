@@ -0,0 +1,111 @@
+package game.collection;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the per-polygon geometry steps: back-face test, transform to
+ * camera space, and clipping. Each operation works on the next polygon of
+ * the scene, so the scene size sets how much of it fits in cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class GeometryBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    private Polygon3D[] worldPolygons;
+    private Polygon3D[] cameraPolygons;
+    private Vector3D[] vertices;
+    private Transform3D camera;
+    private ViewFrustum frustum;
+    private Polygon3D polygon;
+    private Vector3D vector;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        worldPolygons = SyntheticScene.create(size, SyntheticScene.SEED);
+        camera = SyntheticScene.createCamera();
+        camera.getLocation().setTo(10, 20, 30);
+        camera.setAngle(.1f, .2f, .3f);
+        frustum = new ViewFrustum(SyntheticScene.createViewWindow(800, 600));
+
+        cameraPolygons = new Polygon3D[size];
+        vertices = new Vector3D[size];
+        for (int i = 0; i < size; i++) {
+            cameraPolygons[i] = new Polygon3D();
+            cameraPolygons[i].setTo(worldPolygons[i]);
+            cameraPolygons[i].subtract(camera);
+            vertices[i] = worldPolygons[i].getVertex(i % 3);
+        }
+        polygon = new Polygon3D();
+        vector = new Vector3D();
+    }
+
+    private int next() {
+        int i = index;
+        index = (i + 1 == size) ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public boolean isFacing() {
+        return worldPolygons[next()].isFacing(camera.getLocation());
+    }
+
+    /**
+     * Vector3D.subtract(Transform3D), including copying the vertex first.
+     */
+    @Benchmark
+    public Vector3D subtractTransform() {
+        vector.setTo(vertices[next()]);
+        vector.subtract(camera);
+        return vector;
+    }
+
+    /**
+     * Polygon3D.subtract(Transform3D), including copying the polygon first.
+     */
+    @Benchmark
+    public Polygon3D transformPolygon() {
+        polygon.setTo(worldPolygons[next()]);
+        polygon.subtract(camera);
+        return polygon;
+    }
+
+    /**
+     * Polygon3D.clip() of a camera-space polygon, including copying the
+     * polygon first, since clipping changes it.
+     */
+    @Benchmark
+    public boolean clip() {
+        polygon.setTo(cameraPolygons[next()]);
+        return polygon.clip(-1);
+    }
+
+    /**
+     * Polygon3D.clip(ViewFrustum) of a camera-space polygon against all six
+     * planes, including copying the polygon first.
+     */
+    @Benchmark
+    public boolean clipFrustum() {
+        polygon.setTo(cameraPolygons[next()]);
+        return polygon.clip(frustum);
+    }
+}
@@ -0,0 +1,112 @@
+package game.collection;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks projection and scan conversion of polygons that have already
+ * been transformed and clipped, at several view sizes. Only the polygons
+ * that survive the back-face test and clipping are used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class RasterBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    @Param({ "320x240", "800x600", "1920x1080" })
+    public String view;
+
+    private ViewWindow viewWindow;
+    private ScanConverter scanConverter;
+    private Polygon3D[] clippedPolygons;
+    private Polygon3D[] projectedPolygons;
+    private int numPolygons;
+    private SpanList spans;
+    private Vector3D vector;
+    private int index;
+    private int batchStart;
+
+    @Setup
+    public void setUp() {
+        Polygon3D[] polygons = SyntheticScene.create(size, SyntheticScene.SEED);
+        Transform3D camera = SyntheticScene.createCamera();
+        viewWindow = SyntheticScene.createViewWindow(view);
+        scanConverter = new ScanConverter(viewWindow);
+
+        clippedPolygons = new Polygon3D[size];
+        projectedPolygons = new Polygon3D[size];
+        for (int i = 0; i < size; i++) {
+            Polygon3D poly = polygons[i];
+            polygons[i] = null;
+            if (!poly.isFacing(camera.getLocation())) {
+                continue;
+            }
+            poly.subtract(camera);
+            if (!poly.clip(-1)) {
+                continue;
+            }
+            clippedPolygons[numPolygons] = poly;
+            projectedPolygons[numPolygons] = new Polygon3D();
+            projectedPolygons[numPolygons].setTo(poly);
+            projectedPolygons[numPolygons].project(viewWindow);
+            numPolygons++;
+        }
+        spans = new SpanList();
+        vector = new Vector3D();
+    }
+
+    private int next() {
+        int i = index;
+        index = (i + 1 == numPolygons) ? 0 : i + 1;
+        return i;
+    }
+
+    /**
+     * ViewWindow.project() of one camera-space vertex, including copying the
+     * vertex first.
+     */
+    @Benchmark
+    public Vector3D project() {
+        vector.setTo(clippedPolygons[next()].getVertex(0));
+        viewWindow.project(vector);
+        return vector;
+    }
+
+    @Benchmark
+    public boolean scanConvert() {
+        return scanConverter.convert(projectedPolygons[next()]);
+    }
+
+    /**
+     * ScanConverter.convert() of the next BATCH polygons into a SpanList,
+     * timed per polygon so it compares with scanConvert().
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int scanConvertBatch() {
+        int start = batchStart;
+        int end = Math.min(start + BATCH, numPolygons);
+        batchStart = (end == numPolygons) ? 0 : end;
+        spans.clear();
+        return scanConverter.convert(projectedPolygons, start, end, spans);
+    }
+}
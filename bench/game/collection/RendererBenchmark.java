@@ -0,0 +1,85 @@
+package game.collection;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a whole frame: every polygon of the scene drawn through a
+ * PolygonRenderer into an offscreen image, the way House3D draws a frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "-Djava.awt.headless=true" })
+public class RendererBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int size;
+
+    @Param({ "320x240", "800x600", "1920x1080" })
+    public String view;
+
+    @Param({ "java2d", "pixel", "parallel", "tiled", "zbuffer", "sbuffer" })
+    public String renderer;
+
+    private Polygon3D[] polygons;
+    private PolygonRenderer polygonRenderer;
+    private BufferedImage image;
+    private Graphics2D g;
+
+    @Setup
+    public void setUp() {
+        polygons = SyntheticScene.create(size, SyntheticScene.SEED);
+        Transform3D camera = SyntheticScene.createCamera();
+        ViewWindow viewWindow = SyntheticScene.createViewWindow(view);
+        if (renderer.equals("pixel")) {
+            polygonRenderer = new PixelPolygonRenderer(camera, viewWindow);
+        } else if (renderer.equals("parallel")) {
+            polygonRenderer = new ParallelPolygonRenderer(camera, viewWindow);
+        } else if (renderer.equals("tiled")) {
+            polygonRenderer = new TiledPolygonRenderer(camera, viewWindow);
+        } else if (renderer.equals("zbuffer")) {
+            polygonRenderer = new ZBufferPolygonRenderer(camera, viewWindow);
+        } else if (renderer.equals("sbuffer")) {
+            polygonRenderer = new SpanBufferPolygonRenderer(camera, viewWindow);
+        } else {
+            polygonRenderer = new SolidPolygonRenderer(camera, viewWindow);
+        }
+        image = new BufferedImage(viewWindow.getWidth(),
+                viewWindow.getHeight(), BufferedImage.TYPE_INT_RGB);
+        g = image.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    /**
+     * Draws one frame. Returns the number of polygons drawn.
+     */
+    @Benchmark
+    public int drawFrame() {
+        polygonRenderer.startFrame(g);
+        for (int i = 0; i < polygons.length; i++) {
+            polygonRenderer.draw(g, polygons[i]);
+        }
+        polygonRenderer.endFrame(g);
+        return polygonRenderer.getStats().polygonsDrawn;
+    }
+}
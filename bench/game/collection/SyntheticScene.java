@@ -0,0 +1,75 @@
+package game.collection;
+
+import java.awt.Color;
+import java.util.Random;
+
+/**
+ * The SyntheticScene class creates repeatable scenes of randomly placed and
+ * oriented triangles in front of a camera at the origin looking down -z, for
+ * benchmarks. About half the triangles face away from the camera, and some
+ * cross the near clip plane or lie outside the view, like in a real scene.
+ */
+class SyntheticScene {
+
+    public static final long SEED = 42;
+
+    // how far the triangles are spread from the camera
+    private static final float NEAR = -10;
+    private static final float FAR = -5000;
+    private static final float SPREAD = 1.2f;
+    private static final float TRIANGLE_SIZE = 60;
+
+    private SyntheticScene() {
+    }
+
+    /**
+     * Creates numPolygons world-space triangles. The same arguments always
+     * create the same scene.
+     */
+    public static SolidPolygon3D[] create(int numPolygons, long seed) {
+        Random random = new Random(seed);
+        SolidPolygon3D[] polygons = new SolidPolygon3D[numPolygons];
+        for (int i = 0; i < numPolygons; i++) {
+            // place the center inside a frustum a little wider than the view
+            float z = NEAR + (FAR - NEAR) * random.nextFloat();
+            float x = -z * SPREAD * (2 * random.nextFloat() - 1);
+            float y = -z * SPREAD * (2 * random.nextFloat() - 1);
+            Vector3D v0 = randomVertex(random, x, y, z);
+            Vector3D v1 = randomVertex(random, x, y, z);
+            Vector3D v2 = randomVertex(random, x, y, z);
+            polygons[i] = new SolidPolygon3D(v0, v1, v2);
+            polygons[i].setColor(new Color(random.nextInt(0x1000000)));
+        }
+        return polygons;
+    }
+
+    /**
+     * Creates the camera the scene is made for.
+     */
+    public static Transform3D createCamera() {
+        return new Transform3D(0, 0, 0);
+    }
+
+    /**
+     * Creates a view window the specified size, filling the screen.
+     */
+    public static ViewWindow createViewWindow(int width, int height) {
+        return new ViewWindow(0, 0, width, height, (float) Math.toRadians(75));
+    }
+
+    /**
+     * Parses a view size such as "800x600".
+     */
+    public static ViewWindow createViewWindow(String size) {
+        int split = size.indexOf('x');
+        return createViewWindow(Integer.parseInt(size.substring(0, split)),
+                Integer.parseInt(size.substring(split + 1)));
+    }
+
+    private static Vector3D randomVertex(Random random, float x, float y, float z) {
+        return new Vector3D(
+                x + TRIANGLE_SIZE * (random.nextFloat() - .5f),
+                y + TRIANGLE_SIZE * (random.nextFloat() - .5f),
+                z + TRIANGLE_SIZE * (random.nextFloat() - .5f));
+    }
+}
@@ -15,8 +15,10 @@ import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Robot;
 import java.awt.Toolkit;
+import java.awt.Transparency;
 import java.awt.Window;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
@@ -27,32 +29,100 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferStrategy;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
+import com.sun.management.ThreadMXBean;
 
 public class House3D extends GameCore {
 
+    // the longest the screen goes without being redrawn while nothing
+    // changes, to keep the HUD current and repair a damaged screen
+    private static final long MAX_IDLE_NANOS = 1000000000;
+
     public static void main(String args[]) {
         new House3D().run();
     }
 
     protected PolygonRenderer polygonRenderer;
     protected ViewWindow viewWindow;
+    protected Transform3D camera;
+    private Transform3D previousCamera;
+    private int viewWidth;
+    private int viewHeight;
+    // the part of the screen the view is shown in; the view window is
+    // smaller when the resolution is scaled
+    private int viewLeft;
+    private int viewTop;
+    private int shownWidth;
+    private int shownHeight;
+    private ResolutionController resolution;
+    private BufferedImage scaledImage;
+    private Graphics2D scaledGraphics;
+    private FrameState drawState = new FrameState();
+    private TripleBuffer frameStates = new TripleBuffer(new FrameState(),
+            new FrameState(), new FrameState());
     protected List polygons;
+    protected BSPTree bspTree;
+    protected BoundingVolumeTree boundingVolumeTree;
+    protected IndexedMesh mesh;
+    protected InstancedMesh village;
+    protected ChunkedWorld world;
     private boolean drawFrameRate = false;
+    private boolean frameRateVisible = false;
+    private boolean drawOverdraw = false;
     private boolean drawInstructions = true;
-    private int numFrames;// for calculating frame rate
-    private long startTime;
-    private float frameRate;
+    // what the frame on the screen was drawn from, to skip drawing frames
+    // that would look the same
+    private boolean skipIdleFrames;
+    private Transform3D drawnCamera = new Transform3D();
+    private int drawnViewVersion = -1;
+    private int drawnSceneVersion = -1;
+    private long drawnTime;
+    private int sceneVersion;
+    private volatile int scriptFrames;
+    private int numScriptFrames;
     protected InputManager inputManager;
     private GameAction exit = new GameAction("exit");
     private GameAction smallerView = new GameAction("smallerView", GameAction.DETECT_INITAL_PRESS_ONLY);
     private GameAction largerView = new GameAction("largerView", GameAction.DETECT_INITAL_PRESS_ONLY);
     private GameAction frameRateToggle = new GameAction("frameRateToggle", GameAction.DETECT_INITAL_PRESS_ONLY);
+    private GameAction overdrawToggle = new GameAction("overdrawToggle", GameAction.DETECT_INITAL_PRESS_ONLY);
     private GameAction goForward = new GameAction("goForward");
     private GameAction goBackward = new GameAction("goBackward");
     private GameAction goUp = new GameAction("goUp");
@@ -65,10 +135,172 @@ public class House3D extends GameCore {
     private GameAction tiltDown = new GameAction("tiltDown");
     private GameAction tiltLeft = new GameAction("tiltLeft");
     private GameAction tiltRight = new GameAction("tiltRight");
+    private GameAction[] actions = { exit, smallerView, largerView,
+        frameRateToggle, overdrawToggle, goForward, goBackward, goUp, goDown,
+        goLeft, goRight, turnLeft, turnRight, tiltUp, tiltDown, tiltLeft,
+        tiltRight };
+    private InputRecorder inputRecorder;
+    private InputPlayer inputPlayer;
+    private InputSnapshot replayInput;
+    private TextLine text = new TextLine();
+
+    /**
+     * Everything draw() reads that update() changes, so the two can run on
+     * different threads.
+     */
+    static class FrameState {
+        Transform3D previousCamera = new Transform3D();
+        Transform3D camera = new Transform3D();
+        int viewWidth;
+        int viewHeight;
+        boolean drawFrameRate;
+        boolean drawOverdraw;
+        long time;
+    }
 
     public void init(DisplayMode[] modes) {
         super.init(modes);
 
+        // e.g. -Dhouse3d.loop=fixed -Dhouse3d.fps=60 (0 for uncapped)
+        String loop = System.getProperty("house3d.loop", "busy");
+        if (loop.equals("fixed")) {
+            setLoopMode(LOOP_FIXED_STEP);
+        } else if (loop.equals("pipelined")) {
+            setLoopMode(LOOP_PIPELINED);
+        }
+        setTargetFrameRate(Integer.getInteger("house3d.fps",
+                isHeadless() ? 0 : 60).intValue());
+        setFixedStep(Integer.getInteger("house3d.step", 10).intValue());
+
+        // time every stage of drawing and write the times to a CSV file on
+        // exit, e.g. -Dhouse3d.profile=frames.csv
+        setProfileFilename(System.getProperty("house3d.profile"));
+
+        // exit with an error if frames allocate memory once warmed up, so
+        // garbage collection can't cause hitches,
+        // e.g. -Dhouse3d.checkAllocation=true
+        setCheckAllocation(Boolean.getBoolean("house3d.checkAllocation"));
+
+        // show how many times each pixel is drawn instead of the scene,
+        // e.g. -Dhouse3d.overdraw=true
+        drawOverdraw = Boolean.getBoolean("house3d.overdraw");
+
+        // with no display there is no input, so the camera follows a script
+        // for a number of frames, e.g. -Djava.awt.headless=true
+        // -Dhouse3d.frames=600
+        if (isHeadless()) {
+            numScriptFrames = Integer.getInteger("house3d.frames", 600).intValue();
+            drawInstructions = false;
+            drawFrameRate = true;
+        } else {
+            initInput();
+        }
+
+        // lower the resolution while frames take longer than a budget, and
+        // scale them up to the view, e.g. -Dhouse3d.budget=16 (ms)
+        // -Dhouse3d.minScale=0.5
+        String budget = System.getProperty("house3d.budget");
+        if (budget != null) {
+            resolution = new ResolutionController(
+                    (long) (Float.parseFloat(budget) * 1000000),
+                    Float.parseFloat(System.getProperty("house3d.minScale", "0.5")));
+        }
+
+        // record the input of every update, or play a recording back in
+        // place of the input (or the headless script), so runs can be
+        // compared on the same camera path,
+        // e.g. -Dhouse3d.record=path.h3di, -Dhouse3d.replay=path.h3di
+        initReplay(System.getProperty("house3d.record"),
+                System.getProperty("house3d.replay"));
+
+        // don't draw frames when the camera, the view and the scene are the
+        // same as in the frame on the screen. Headless runs and replays
+        // draw every frame, since they are for measuring,
+        // e.g. -Dhouse3d.skipIdle=false
+        skipIdleFrames = Boolean.valueOf(System.getProperty("house3d.skipIdle",
+                String.valueOf(!isHeadless() && inputPlayer == null))).booleanValue();
+
+        // create the polygon renderer
+        createPolygonRenderer();
+
+        // create polygons
+        polygons = new ArrayList();
+        createPolygons();
+
+        // a chunked world streamed from disk replaces the house,
+        // e.g. -Dhouse3d.world=worlddir -Dhouse3d.worldRadius=3
+        // -Dhouse3d.worldBudget=64 (megabytes)
+        String worldDir = System.getProperty("house3d.world");
+        if (worldDir != null) {
+            try {
+                world = new ChunkedWorld(new File(worldDir),
+                        Integer.getInteger("house3d.worldRadius", 3).intValue(),
+                        Integer.getInteger("house3d.worldBudget", 64).intValue() * 1024L * 1024);
+            } catch (IOException ex) {
+                throw new RuntimeException("Couldn't open " + worldDir, ex);
+            }
+            world.start();
+            return;
+        }
+
+        // a scene file replaces the house, and is drawn as a mesh,
+        // e.g. -Dhouse3d.sceneFile=world.h3d
+        String sceneFile = System.getProperty("house3d.sceneFile");
+        if (sceneFile != null) {
+            try {
+                mesh = SceneFile.load(new File(sceneFile));
+            } catch (IOException ex) {
+                throw new RuntimeException("Couldn't load " + sceneFile, ex);
+            }
+            return;
+        }
+
+        // optionally compile the static polygons into a BSP tree or a
+        // bounding volume tree, e.g. -Dhouse3d.scene=bsp
+        String scene = System.getProperty("house3d.scene", "list");
+        if (scene.equals("bsp")) {
+            bspTree = new BSPTree(polygons);
+        } else if (scene.equals("bvh")) {
+            boundingVolumeTree = new BoundingVolumeTree(polygons);
+        } else if (scene.equals("mesh")) {
+            mesh = IndexedMesh.fromPolygons(polygons);
+        } else if (scene.equals("village")) {
+            // e.g. -Dhouse3d.villageSize=100 for 100 x 100 houses
+            createVillage(Integer.getInteger("house3d.villageSize", 100).intValue());
+        }
+    }
+
+    /**
+     * Places size by size copies of the house on a grid, starting where the
+     * house is and going away from the camera. The houses share one mesh,
+     * and each is turned and tinted at random.
+     */
+    private void createVillage(int size) {
+        IndexedMesh house = IndexedMesh.fromPolygons(polygons);
+        // center the house on the origin, so each one turns around its center
+        house.translate(0, 0, 1200);
+        village = new InstancedMesh(house);
+        Color[] tints = { Color.WHITE, new Color(255, 220, 170),
+                new Color(200, 220, 255), new Color(255, 190, 190),
+                new Color(200, 255, 200), new Color(180, 180, 180) };
+        for (int i = 0; i < tints.length; i++) {
+            village.addTint(tints[i]);
+        }
+
+        float spacing = 700;
+        Random random = new Random(size);
+        Transform3D transform = new Transform3D();
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                transform.getLocation().setTo((i - size / 2) * spacing, 0,
+                        -1200 - j * spacing);
+                transform.setAngle(0, random.nextInt(4) * (float) Math.PI / 2, 0);
+                village.addInstance(transform, random.nextInt(tints.length));
+            }
+        }
+    }
+
+    private void initInput() {
         inputManager = new InputManager(screen.getFullScreenWindow());
         inputManager.setRelativeMouseMode(true);
         inputManager.setCursor(InputManager.INVISIBLE_CURSOR);
@@ -98,13 +330,41 @@ public class House3D extends GameCore {
         inputManager.mapToKey(largerView, KeyEvent.VK_PLUS);
         inputManager.mapToKey(largerView, KeyEvent.VK_EQUALS);
         inputManager.mapToKey(frameRateToggle, KeyEvent.VK_R);
+        inputManager.mapToKey(overdrawToggle, KeyEvent.VK_O);
+    }
 
-        // create the polygon renderer
-        createPolygonRenderer();
+    private void initReplay(String recordFile, String replayFile) {
+        try {
+            if (replayFile != null) {
+                replayInput = new InputSnapshot();
+                for (int i = 0; i < actions.length; i++) {
+                    replayInput.add(actions[i]);
+                }
+                inputPlayer = new InputPlayer(new File(replayFile), replayInput);
+                drawInstructions = false;
+                setPrintProfile(true);
+            } else if (recordFile != null && inputManager != null) {
+                inputRecorder = new InputRecorder(new File(recordFile),
+                        inputManager.takeSnapshot());
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't open input log", ex);
+        }
+    }
 
-        // create polygons
-        polygons = new ArrayList();
-        createPolygons();
+    protected void cleanup() {
+        if (world != null) {
+            world.stop();
+        }
+        if (inputRecorder != null) {
+            try {
+                inputRecorder.close();
+                System.out.println(inputRecorder.getNumFrames()
+                        + " updates recorded");
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
     }
 
     public void createPolygons() {
@@ -157,105 +417,336 @@ public class House3D extends GameCore {
         // make the view window the entire screen
         viewWindow = new ViewWindow(0, 0, screen.getWidth(),
                 screen.getHeight(), (float) Math.toRadians(75));
+        viewWidth = screen.getWidth();
+        viewHeight = screen.getHeight();
+
+        // the renderer draws with its own copy of the camera, set from the
+        // simulated camera in interpolate()
+        camera = new Transform3D(0, 100, 0);
+        previousCamera = new Transform3D(camera);
+        Transform3D renderCamera = new Transform3D(camera);
+
+        // choose the renderer at startup, e.g. -Dhouse3d.renderer=pixel
+        String renderer = System.getProperty("house3d.renderer", "java2d");
+        if (renderer.equals("pixel")) {
+            polygonRenderer = new PixelPolygonRenderer(renderCamera, viewWindow);
+        } else if (renderer.equals("parallel")) {
+            polygonRenderer = new ParallelPolygonRenderer(renderCamera, viewWindow);
+        } else if (renderer.equals("tiled")) {
+            polygonRenderer = new TiledPolygonRenderer(renderCamera, viewWindow);
+        } else if (renderer.equals("zbuffer")) {
+            polygonRenderer = new ZBufferPolygonRenderer(renderCamera, viewWindow);
+        } else if (renderer.equals("sbuffer")) {
+            // fastest in front-to-back order, e.g. -Dhouse3d.scene=bsp
+            polygonRenderer = new SpanBufferPolygonRenderer(renderCamera, viewWindow);
+        } else {
+            polygonRenderer = new SolidPolygonRenderer(renderCamera, viewWindow);
+        }
+        if (System.getProperty("house3d.profile") != null) {
+            polygonRenderer.setProfiler(profiler);
+        }
+        polygonRenderer.setAllocationMonitor(allocations);
 
-        Transform3D camera = new Transform3D(0, 100, 0);
-        polygonRenderer = new SolidPolygonRenderer(camera, viewWindow);
+        // how far polygons may reach outside the view before they are
+        // clipped, e.g. -Dhouse3d.guardBand=0
+        polygonRenderer.getFrustum().setGuardBand(Integer.getInteger(
+                "house3d.guardBand", ViewFrustum.DEFAULT_GUARD_BAND).intValue());
     }
 
+    /**
+     * Sets the size of the view. The view window changes when the next frame
+     * is drawn.
+     */
     public void setViewBounds(int width, int height) {
         width = Math.min(width, screen.getWidth());
         height = Math.min(height, screen.getHeight());
         width = Math.max(64, width);
         height = Math.max(48, height);
-        viewWindow.setBounds((screen.getWidth() - width) / 2, (screen.getHeight() - height) / 2, width, height);
+        viewWidth = width;
+        viewHeight = height;
     }
 
     public void update(long elapsedTime) {
-        if (exit.isPressed()) {
+        // read all the input of this frame at once
+        InputSnapshot input;
+        if (inputPlayer != null) {
+            // Esc still stops a replay with a display
+            if (!inputPlayer.hasNext() || (inputManager != null
+                    && inputManager.takeSnapshot().isPressed(exit))) {
+                stop();
+                return;
+            }
+            elapsedTime = inputPlayer.next();
+            input = replayInput;
+        } else if (isHeadless()) {
+            updateScript();
+            return;
+        } else {
+            input = inputManager.takeSnapshot();
+            if (inputRecorder != null) {
+                try {
+                    inputRecorder.record(elapsedTime, input);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    inputRecorder = null;
+                }
+            }
+        }
+
+        if (input.isPressed(exit)) {
             stop();
             return;
         }
 
-        if (largerView.isPressed()) {
-            setViewBounds(viewWindow.getWidth() + 64,
-                    viewWindow.getHeight() + 48);
-        } else if (smallerView.isPressed()) {
-            setViewBounds(viewWindow.getWidth() - 64,
-                    viewWindow.getHeight() - 48);
+        if (input.isPressed(largerView)) {
+            setViewBounds(viewWidth + 64, viewHeight + 48);
+        } else if (input.isPressed(smallerView)) {
+            setViewBounds(viewWidth - 64, viewHeight - 48);
         }
 
-        if (frameRateToggle.isPressed()) {
+        if (input.isPressed(frameRateToggle)) {
             drawFrameRate = !drawFrameRate;
         }
 
+        if (input.isPressed(overdrawToggle)) {
+            drawOverdraw = !drawOverdraw;
+        }
+
         // cap elapsedTime
         elapsedTime = Math.min(elapsedTime, 100);
 
         float angleChange = 0.0002f * elapsedTime;
         float distanceChange = .5f * elapsedTime;
 
-        Transform3D camera = polygonRenderer.getCamera();
+        previousCamera.setTo(camera);
         Vector3D cameraLoc = camera.getLocation();
 
         // apply movement
-        if (goForward.isPressed()) {
+        if (input.isPressed(goForward)) {
             cameraLoc.x -= distanceChange * camera.getSinAngleY();
             cameraLoc.z -= distanceChange * camera.getCosAngleY();
         }
-        if (goBackward.isPressed()) {
+        if (input.isPressed(goBackward)) {
             cameraLoc.x += distanceChange * camera.getSinAngleY();
             cameraLoc.z += distanceChange * camera.getCosAngleY();
         }
-        if (goLeft.isPressed()) {
+        if (input.isPressed(goLeft)) {
             cameraLoc.x -= distanceChange * camera.getCosAngleY();
             cameraLoc.z += distanceChange * camera.getSinAngleY();
         }
-        if (goRight.isPressed()) {
+        if (input.isPressed(goRight)) {
             cameraLoc.x += distanceChange * camera.getCosAngleY();
             cameraLoc.z -= distanceChange * camera.getSinAngleY();
         }
-        if (goUp.isPressed()) {
+        if (input.isPressed(goUp)) {
             cameraLoc.y += distanceChange;
         }
-        if (goDown.isPressed()) {
+        if (input.isPressed(goDown)) {
             cameraLoc.y -= distanceChange;
         }
 
         // look up/down (rotate around x)
-        int tilt = tiltUp.getAmount() - tiltDown.getAmount();
+        int tilt = input.getAmount(tiltUp) - input.getAmount(tiltDown);
         tilt = Math.min(tilt, 200);
         tilt = Math.max(tilt, -200);
 
         // limit how far you can look up/down
-        float newAngleX = camera.getAngleX() + tilt * angleChange;
+        float angleX = camera.getAngleX();
+        float newAngleX = angleX + tilt * angleChange;
         newAngleX = Math.max(newAngleX, (float) -Math.PI / 2);
         newAngleX = Math.min(newAngleX, (float) Math.PI / 2);
-        camera.setAngleX(newAngleX);
+        // setting the same angle could still change the last bit of its
+        // sine and cosine, and make the camera look like it moved
+        if (newAngleX != angleX) {
+            camera.setAngleX(newAngleX);
+        }
 
         // turn (rotate around y)
-        int turn = turnLeft.getAmount() - turnRight.getAmount();
+        int turn = input.getAmount(turnLeft) - input.getAmount(turnRight);
         turn = Math.min(turn, 200);
         turn = Math.max(turn, -200);
         camera.rotateAngleY(turn * angleChange);
 
         // tilet head left/right (rotate around z)
-        if (tiltLeft.isPressed()) {
+        if (input.isPressed(tiltLeft)) {
             camera.rotateAngleZ(10 * angleChange);
         }
-        if (tiltRight.isPressed()) {
+        if (input.isPressed(tiltRight)) {
             camera.rotateAngleZ(-10 * angleChange);
         }
     }
 
+    /**
+     * Moves the camera once around the house over the scripted frames,
+     * looking at the middle of the house, then stops. The position depends
+     * only on the frame number, so every run draws the same frames.
+     */
+    private void updateScript() {
+        if (scriptFrames >= numScriptFrames) {
+            stop();
+            return;
+        }
+        float angle = (float) (2 * Math.PI * scriptFrames / numScriptFrames);
+        previousCamera.setTo(camera);
+        camera.getLocation().setTo(1200 * (float) Math.sin(angle), 100,
+                -1200 + 1200 * (float) Math.cos(angle));
+        camera.setAngle(0, angle, 0);
+    }
+
+    public void interpolate(float alpha) {
+        writeState(drawState);
+        applyState(drawState, alpha);
+    }
+
+    public void publishState() {
+        writeState((FrameState) frameStates.getWriteBuffer());
+        frameStates.publish();
+    }
+
+    public void readState() {
+        FrameState state = (FrameState) frameStates.getReadBuffer();
+
+        // the state is one step old when it is published, so blend toward
+        // it as real time catches up
+        float alpha = (System.nanoTime() - state.time) / (getFixedStep() * 1000000f);
+        applyState(state, Math.min(alpha, 1));
+    }
+
+    private void writeState(FrameState state) {
+        state.previousCamera.setTo(previousCamera);
+        state.camera.setTo(camera);
+        state.viewWidth = viewWidth;
+        state.viewHeight = viewHeight;
+        state.drawFrameRate = drawFrameRate;
+        state.drawOverdraw = drawOverdraw;
+        state.time = System.nanoTime();
+    }
+
+    private void applyState(FrameState state, float alpha) {
+        polygonRenderer.getCamera().setToInterpolated(state.previousCamera,
+                state.camera, alpha);
+        if (state.viewWidth != shownWidth || state.viewHeight != shownHeight) {
+            shownWidth = state.viewWidth;
+            shownHeight = state.viewHeight;
+            viewLeft = (screen.getWidth() - shownWidth) / 2;
+            viewTop = (screen.getHeight() - shownHeight) / 2;
+            layoutView();
+        }
+        if (frameRateVisible != state.drawFrameRate
+                || polygonRenderer.isOverdrawEnabled() != state.drawOverdraw) {
+            sceneVersion++;
+        }
+        frameRateVisible = state.drawFrameRate;
+        polygonRenderer.setOverdrawEnabled(state.drawOverdraw);
+    }
+
+    public boolean isFrameNeeded() {
+        if (!skipIdleFrames) {
+            return true;
+        }
+        Transform3D renderCamera = polygonRenderer.getCamera();
+        int viewVersion = viewWindow.getVersion();
+        // the versions only go up, so their sum changes if either does
+        int version = sceneVersion + ((world != null) ? world.getVersion() : 0);
+        long now = System.nanoTime();
+        if (renderCamera.equals(drawnCamera) && viewVersion == drawnViewVersion
+                && version == drawnSceneVersion
+                && now - drawnTime < MAX_IDLE_NANOS) {
+            return false;
+        }
+        drawnCamera.setTo(renderCamera);
+        drawnViewVersion = viewVersion;
+        drawnSceneVersion = version;
+        drawnTime = now;
+        return true;
+    }
+
+    /**
+     * Sets the view window to the part of the screen the view is shown in,
+     * or, when the resolution is scaled down, to the top left of the scaled
+     * image, at the scaled size.
+     */
+    private void layoutView() {
+        float scale = (resolution != null) ? resolution.getScale() : 1;
+        if (scale >= 1) {
+            viewWindow.setBounds(viewLeft, viewTop, shownWidth, shownHeight);
+            return;
+        }
+        // the image only grows, so changing the scale doesn't reallocate it
+        if (scaledImage == null || scaledImage.getWidth() < shownWidth
+                || scaledImage.getHeight() < shownHeight) {
+            if (scaledGraphics != null) {
+                scaledGraphics.dispose();
+            }
+            scaledImage = new BufferedImage(shownWidth, shownHeight,
+                    BufferedImage.TYPE_INT_RGB);
+            scaledGraphics = scaledImage.createGraphics();
+        }
+        viewWindow.setBounds(0, 0, Math.max(1, Math.round(shownWidth * scale)),
+                Math.max(1, Math.round(shownHeight * scale)));
+    }
+
     public void draw(Graphics2D g) {
+        long start = System.nanoTime();
+        boolean scaled = viewWindow.getWidth() != shownWidth
+                || viewWindow.getHeight() != shownHeight;
+        if (polygonRenderer instanceof PixelPolygonRenderer) {
+            // draw straight into the images owned here rather than copying
+            // to them; a BufferStrategy's buffers can't be drawn into
+            BufferedImage target = null;
+            if (scaled) {
+                target = scaledImage;
+            } else if (isHeadless()) {
+                target = ((HeadlessScreenManager) screen).getImage();
+            }
+            ((PixelPolygonRenderer) polygonRenderer).setTargetImage(target);
+        }
+        drawView(scaled ? scaledGraphics : g);
+        if (scaled) {
+            // bilinear filtering costs more than the pixels saved in
+            // software, so scale up by repeating pixels
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g.drawImage(scaledImage, viewLeft, viewTop, viewLeft + shownWidth,
+                    viewTop + shownHeight, 0, 0, viewWindow.getWidth(),
+                    viewWindow.getHeight(), null);
+        }
+        if (resolution != null && resolution.frameDrawn(System.nanoTime() - start)) {
+            layoutView();
+        }
+
+        drawText(g);
+        if (isHeadless()) {
+            scriptFrames++;
+        }
+    }
+
+    private void drawView(Graphics2D g) {
         // draw polygons
         polygonRenderer.startFrame(g);
-        for (int i = 0; i < polygons.size(); i++) {
-            polygonRenderer.draw(g, (Polygon3D) polygons.get(i));
+        if (world != null) {
+            world.draw(g, polygonRenderer);
+        } else if (bspTree != null) {
+            bspTree.draw(g, polygonRenderer);
+        } else if (boundingVolumeTree != null) {
+            boundingVolumeTree.draw(g, polygonRenderer);
+        } else if (village != null) {
+            village.draw(g, polygonRenderer);
+        } else if (mesh != null) {
+            polygonRenderer.draw(g, mesh);
+        } else if (polygonRenderer.isFirstDrawnOnTop()) {
+            // the list is in painting order, so the door and windows come
+            // after the wall they are on
+            for (int i = polygons.size() - 1; i >= 0; i--) {
+                polygonRenderer.draw(g, (Polygon3D) polygons.get(i));
+            }
+        } else {
+            for (int i = 0; i < polygons.size(); i++) {
+                polygonRenderer.draw(g, (Polygon3D) polygons.get(i));
+            }
         }
         polygonRenderer.endFrame(g);
-
-        drawText(g);
+        polygonRenderer.drawOverdraw(g);
     }
 
     public void drawText(Graphics g) {
@@ -267,22 +758,62 @@ public class House3D extends GameCore {
 
         // (you may have to turn off the BufferStrategy in
         // ScreenManager for more accurate tests)
-        if (drawFrameRate) {
-            calcFrameRate();
-            g.drawString(frameRate + " frames/sec", 5, screen.getHeight() - 5);
+        // the lines are built in a TextLine, so drawing them creates no
+        // Strings
+        if (frameRateVisible) {
+            int y = screen.getHeight() - 5;
+            text.appendHundredths(Math.round(profiler.getFrameRate() * 100))
+                    .append(" frames/sec, ").append(allocations.getFrameBytes())
+                    .append(" bytes allocated").draw(g, 5, y);
+            if (resolution != null) {
+                y -= fontSize;
+                text.append(viewWindow.getWidth()).append('x')
+                        .append(viewWindow.getHeight()).append(" (")
+                        .append(Math.round(resolution.getScale() * 100))
+                        .append("%), budget ");
+                appendMillis(resolution.getBudget()).append(" ms").draw(g, 5, y);
+            }
+            y -= fontSize;
+            RenderStats stats = polygonRenderer.getStats();
+            text.append(stats.polygonsDrawn).append(" drawn, ")
+                    .append(stats.polygonsCulled).append(" culled").draw(g, 5, y);
+            y -= fontSize;
+            int viewArea = viewWindow.getWidth() * viewWindow.getHeight();
+            text.append(stats.polygonsBackFacing).append(" back-facing, ")
+                    .append(stats.polygonsClipped).append(" clipped, ")
+                    .append(stats.polygonsScanConverted).append(" scan converted, ")
+                    .append(stats.spansFilled).append(" spans, ")
+                    .append(stats.pixelsFilled).append(" pixels (")
+                    .appendHundredths(Math.round(100f * stats.pixelsFilled / viewArea))
+                    .append("x)").draw(g, 5, y);
+            if (world != null) {
+                y -= fontSize;
+                text.append(world.getNumResidentChunks()).append(" chunks, ")
+                        .append(world.getResidentBytes() / 1024).append(" KB, ")
+                        .append(world.getNumSkipped()).append(" skipped, load p50 ");
+                appendMillis(world.getLoadLatencyP50()).append(" p99 ");
+                appendMillis(world.getLoadLatencyP99()).append(" ms").draw(g, 5, y);
+            }
+
+            // percentiles over the last second, skipping untimed stages
+            for (int i = FrameProfiler.NUM_STAGES - 1; i >= 0; i--) {
+                if (profiler.getMax(i) > 0) {
+                    y -= fontSize;
+                    text.append(FrameProfiler.getStageName(i)).append(" p50 ");
+                    appendMillis(profiler.getP50(i)).append(" p99 ");
+                    appendMillis(profiler.getP99(i)).append(" max ");
+                    appendMillis(profiler.getMax(i)).append(" ms").draw(g, 5, y);
+                }
+            }
         }
     }
 
-    public void calcFrameRate() {
-        numFrames++;
-        long currTime = System.currentTimeMillis();
-
-        // calculate the frame rate every 500 milliseconds
-        if (currTime > startTime + 500) {
-            frameRate = (float) numFrames * 1000 / (currTime - startTime);
-            startTime = currTime;
-            numFrames = 0;
-        }
+    /**
+     * Appends nanoseconds to the text as milliseconds, rounded to two
+     * decimal places.
+     */
+    private TextLine appendMillis(long nanos) {
+        return text.appendHundredths(Math.round(nanos / 10000.0));
     }
 
 }
@@ -314,9 +845,47 @@ abstract class GameCore {
         new DisplayMode(512, 384, 16, 0), new DisplayMode(640, 480, 16, 0),
         new DisplayMode(800, 600, 16, 0),};
 
-    private boolean isRunning;
+    /**
+     * The original loop: update and draw as fast as possible, timed with
+     * System.currentTimeMillis().
+     */
+    public static final int LOOP_BUSY = 0;
+
+    /**
+     * Updates in fixed time steps and draws at the target frame rate,
+     * interpolating between the last two updates. Timed with System.nanoTime().
+     */
+    public static final int LOOP_FIXED_STEP = 1;
+
+    /**
+     * Updates in fixed time steps on a separate update thread while this
+     * thread draws at the target frame rate. State is handed from update() to
+     * draw() through publishState() and readState().
+     */
+    public static final int LOOP_PIPELINED = 2;
+
+    // stop sleeping this long before a frame is due, and yield instead
+    private static final long SPIN_NANOS = 2000000;
+
+    // the most time one frame can add to the simulation, to avoid falling
+    // further and further behind after a stall
+    private static final long MAX_FRAME_NANOS = 250000000;
+
+    // how long to wait after a frame that didn't need drawing, before
+    // updating again
+    private static final long IDLE_NANOS = 5000000;
+
+    private volatile boolean isRunning;
     protected ScreenManager screen;
     protected int fontSize = DEFAULT_FONT_SIZE;
+    private int loopMode = LOOP_BUSY;
+    private int targetFrameRate = 60;
+    private long fixedStep = 10;
+    protected FrameProfiler profiler = new FrameProfiler();
+    protected AllocationMonitor allocations = new AllocationMonitor();
+    private String profileFilename;
+    private boolean printProfile;
+    private boolean checkAllocation;
 
     public void stop() {
         isRunning = false;
@@ -330,10 +899,79 @@ abstract class GameCore {
             if (screen != null) {
                 screen.restoreScreen();
             }
+            cleanup();
+            writeProfile();
+            if (checkAllocation && allocations.isAllocating()) {
+                System.err.println("Steady-state frames allocated memory");
+                System.exit(1);
+            }
             lazilyExit();
         }
     }
 
+    /**
+     * Called once when the game loop has ended, before the profile is
+     * written. Games can override it to close files.
+     */
+    protected void cleanup() {
+        // do nothing
+    }
+
+    /**
+     * Sets the file the per-frame profile is written to, as CSV, when the
+     * game exits. Null (the default) writes nothing.
+     */
+    public void setProfileFilename(String profileFilename) {
+        this.profileFilename = profileFilename;
+        profiler.setLogging(profileFilename != null);
+    }
+
+    /**
+     * Sets whether the profile summary is printed on exit. It always is
+     * headless, or when a profile file is set.
+     */
+    public void setPrintProfile(boolean printProfile) {
+        this.printProfile = printProfile;
+    }
+
+    /**
+     * Sets whether the game exits with status 1 if frames after the
+     * warm-up keep allocating memory, for benchmarks that must not be interrupted
+     * by the garbage collector. The allocation summary is printed with the
+     * profile.
+     */
+    public void setCheckAllocation(boolean checkAllocation) {
+        this.checkAllocation = checkAllocation;
+    }
+
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+    public AllocationMonitor getAllocationMonitor() {
+        return allocations;
+    }
+
+    /**
+     * Prints the profile summary and writes the CSV file, if one was set.
+     * The summary is always printed headless, since there is no HUD.
+     */
+    private void writeProfile() {
+        if (screen instanceof HeadlessScreenManager || profileFilename != null
+                || printProfile || checkAllocation) {
+            profiler.printSummary(System.out);
+            allocations.printSummary(System.out);
+        }
+        if (profileFilename == null) {
+            return;
+        }
+        try {
+            profiler.writeCsv(profileFilename);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
     public void lazilyExit() {
         Thread thread = new Thread() {
             public void run() {
@@ -355,23 +993,79 @@ abstract class GameCore {
     }
 
     public void init(DisplayMode[] possibleModes) {
-        screen = new ScreenManager();
+        screen = createScreenManager();
         DisplayMode displayMode = screen.findFirstCompatibleMode(possibleModes);
         screen.setFullScreen(displayMode);
 
         Window window = screen.getFullScreenWindow();
-        window.setFont(new Font("Dialog", Font.PLAIN, fontSize));
-        window.setBackground(Color.blue);
-        window.setForeground(Color.white);
+        if (window != null) {
+            window.setFont(new Font("Dialog", Font.PLAIN, fontSize));
+            window.setBackground(Color.blue);
+            window.setForeground(Color.white);
+        }
 
         isRunning = true;
     }
 
+    /**
+     * Creates the ScreenManager. When there is no display
+     * (java.awt.headless=true) this is a HeadlessScreenManager, which draws
+     * into an offscreen image.
+     */
+    protected ScreenManager createScreenManager() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new HeadlessScreenManager();
+        }
+        return new ScreenManager();
+    }
+
+    /**
+     * Returns true if the game is drawing offscreen with no display.
+     */
+    public boolean isHeadless() {
+        return screen instanceof HeadlessScreenManager;
+    }
+
     public Image loadImage(String fileName) {
         return new ImageIcon(fileName).getImage();
     }
 
+    /**
+     * Sets the game loop to LOOP_BUSY, LOOP_FIXED_STEP or LOOP_PIPELINED.
+     */
+    public void setLoopMode(int loopMode) {
+        this.loopMode = loopMode;
+    }
+
+    /**
+     * Sets the frame rate LOOP_FIXED_STEP draws at. Zero means uncapped,
+     * which is useful for benchmarking.
+     */
+    public void setTargetFrameRate(int targetFrameRate) {
+        this.targetFrameRate = targetFrameRate;
+    }
+
+    /**
+     * Sets the time, in milliseconds, of one update in LOOP_FIXED_STEP and
+     * LOOP_PIPELINED.
+     */
+    public void setFixedStep(long fixedStep) {
+        this.fixedStep = Math.max(1, fixedStep);
+    }
+
+    public long getFixedStep() {
+        return fixedStep;
+    }
+
     public void gameLoop() {
+        if (loopMode == LOOP_FIXED_STEP) {
+            fixedStepLoop();
+            return;
+        } else if (loopMode == LOOP_PIPELINED) {
+            pipelinedLoop();
+            return;
+        }
+
         long startTime = System.currentTimeMillis();
         long currTime = startTime;
 
@@ -380,84 +1074,628 @@ abstract class GameCore {
             currTime += elapsedTime;
 
             // update
-            update(elapsedTime);
+            timedUpdate(elapsedTime);
 
             // draw the screen
-            Graphics2D g = screen.getGraphics();
-            draw(g);
-            g.dispose();
-            screen.update();
-
+            interpolate(1);
+            drawFrameIfNeeded();
         }
     }
 
-    public void update(long elapsedTime) {
-        // do nothing
-    }
+    /**
+     * Runs update() in steps of fixedStep milliseconds of accumulated real
+     * time, and draws once per frame with the leftover fraction of a step
+     * passed to interpolate(). Frames are paced to the target frame rate by
+     * sleeping until shortly before the frame is due, then yielding.
+     */
+    private void fixedStepLoop() {
+        long stepNanos = fixedStep * 1000000;
+        long frameNanos = (targetFrameRate > 0) ? 1000000000L / targetFrameRate : 0;
+        long currTime = System.nanoTime();
+        long nextFrameTime = currTime;
+        long accumulator = 0;
 
-    public abstract void draw(Graphics2D g);
-}
-//-----------------------------------------------------------------
+        while (isRunning) {
+            long now = System.nanoTime();
+            accumulator += Math.min(now - currTime, MAX_FRAME_NANOS);
+            currTime = now;
 
-abstract class PolygonRenderer {
+            // update
+            while (accumulator >= stepNanos && isRunning) {
+                timedUpdate(fixedStep);
+                accumulator -= stepNanos;
+            }
 
-    protected ScanConverter scanConverter;
-    protected Transform3D camera;
-    protected ViewWindow viewWindow;
-    protected boolean clearViewEveryFrame;
-    protected Polygon3D sourcePolygon;
-    protected Polygon3D destPolygon;
+            // draw the screen
+            interpolate((float) accumulator / stepNanos);
+            drawFrameIfNeeded();
 
-    public PolygonRenderer(Transform3D camera, ViewWindow viewWindow) {
-        this(camera, viewWindow, true);
+            nextFrameTime = waitForFrame(nextFrameTime, frameNanos);
+        }
     }
 
-    public PolygonRenderer(Transform3D camera, ViewWindow viewWindow, boolean clearViewEveryFrame) {
-        this.camera = camera;
-        this.viewWindow = viewWindow;
-        this.clearViewEveryFrame = clearViewEveryFrame;
-        init();
-    }
+    /**
+     * Draws on this thread while a second thread runs update() in fixed
+     * steps, so frame N+1 is simulated while frame N is drawn and shown.
+     */
+    private void pipelinedLoop() {
+        // make sure there is a state to draw before the first update
+        publishState();
 
-    protected void init() {
-        destPolygon = new Polygon3D();
-        scanConverter = new ScanConverter(viewWindow);
-    }
+        Thread updateThread = new Thread("update") {
+            public void run() {
+                try {
+                    updateLoop();
+                } finally {
+                    GameCore.this.stop();
+                }
+            }
+        };
+        updateThread.start();
 
-    public Transform3D getCamera() {
-        return camera;
+        long frameNanos = (targetFrameRate > 0) ? 1000000000L / targetFrameRate : 0;
+        long nextFrameTime = System.nanoTime();
+        try {
+            while (isRunning) {
+                readState();
+                drawFrameIfNeeded();
+                nextFrameTime = waitForFrame(nextFrameTime, frameNanos);
+            }
+        } finally {
+            stop();
+            try {
+                updateThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
-    public void startFrame(Graphics2D g) {
-        if (clearViewEveryFrame) {
-            g.setColor(Color.black);
-            g.fillRect(viewWindow.getLeftOffset(), viewWindow.getTopOffset(),
-                    viewWindow.getWidth(), viewWindow.getHeight());
+    private void updateLoop() {
+        long stepNanos = fixedStep * 1000000;
+        long nextUpdateTime = System.nanoTime();
+
+        while (isRunning) {
+            // this thread's allocations are added to the frame being drawn
+            long bytes = allocations.getThreadAllocatedBytes();
+            timedUpdate(fixedStep);
+            publishState();
+            allocations.add(allocations.getThreadAllocatedBytes() - bytes);
+
+            nextUpdateTime += stepNanos;
+            long now = System.nanoTime();
+            if (nextUpdateTime < now - MAX_FRAME_NANOS) {
+                // too far behind to catch up
+                nextUpdateTime = now;
+            }
+            sleepUntil(nextUpdateTime);
+        }
+    }
+
+    /**
+     * Waits until the frame after the one due at frameTime, and returns the
+     * time that frame is due. Does nothing if frameNanos is zero (uncapped).
+     */
+    private long waitForFrame(long frameTime, long frameNanos) {
+        if (frameNanos <= 0) {
+            return frameTime;
+        }
+        frameTime += frameNanos;
+        long now = System.nanoTime();
+        if (frameTime < now - frameNanos) {
+            // too far behind to catch up
+            frameTime = now;
+        }
+        sleepUntil(frameTime);
+        return frameTime;
+    }
+
+    /**
+     * Sleeps until System.nanoTime() reaches the specified time. Sleeping is
+     * only accurate to a millisecond or two, so the last SPIN_NANOS are spent
+     * yielding.
+     */
+    protected void sleepUntil(long time) {
+        while (true) {
+            long remaining = time - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            } else if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Draws one frame and shows it.
+     */
+    protected void drawFrame() {
+        Graphics2D g = screen.getGraphics();
+        draw(g);
+        screen.releaseGraphics(g);
+        long time = System.nanoTime();
+        screen.update();
+        profiler.time(FrameProfiler.PRESENT, time);
+        profiler.endFrame();
+        allocations.endFrame();
+    }
+
+    /**
+     * Draws one frame and shows it, unless isFrameNeeded() says it would look
+     * the same as the one on the screen. Then the screen is left alone, and
+     * the loop waits a little before updating again, so a game that is
+     * standing still uses almost no CPU.
+     */
+    private void drawFrameIfNeeded() {
+        if (isFrameNeeded()) {
+            drawFrame();
+        } else {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Called after interpolate() or readState(), before each frame is drawn.
+     * Games can return false when nothing that draw() draws has changed
+     * since the last frame, to skip drawing it. Always returns true by
+     * default.
+     */
+    public boolean isFrameNeeded() {
+        return true;
+    }
+
+    private void timedUpdate(long elapsedTime) {
+        long time = System.nanoTime();
+        update(elapsedTime);
+        profiler.addUpdate(System.nanoTime() - time);
+    }
+
+    public void update(long elapsedTime) {
+        // do nothing
+    }
+
+    /**
+     * Called before each draw() with how far, from 0 to 1, real time is
+     * between the last update and the next one. Games can blend the last two
+     * updated states by this amount for smooth motion. LOOP_BUSY always
+     * passes 1. LOOP_PIPELINED calls readState() instead.
+     */
+    public void interpolate(float alpha) {
+        // do nothing
+    }
+
+    /**
+     * Called on the update thread in LOOP_PIPELINED after each update(), and
+     * once before the update thread starts. Games copy what draw() needs
+     * into a buffer the draw thread doesn't read, then publish it, for
+     * example with a TripleBuffer.
+     */
+    public void publishState() {
+        // do nothing
+    }
+
+    /**
+     * Called on the draw thread in LOOP_PIPELINED before each draw(), to take
+     * the most recently published state.
+     */
+    public void readState() {
+        // do nothing
+    }
+
+    public abstract void draw(Graphics2D g);
+}
+//-----------------------------------------------------------------
+/**
+ * The TripleBuffer class hands state from one writer thread to one reader
+ * thread without locks. The writer fills the write buffer and publishes it;
+ * the reader always gets the most recently published buffer, and neither
+ * ever waits for the other or sees a buffer the other is using.
+ */
+class TripleBuffer {
+
+    // set on the shared index when it holds a buffer the reader hasn't seen
+    private static final int FRESH = 4;
+
+    private Object[] buffers;
+    private AtomicInteger shared;
+    private int writeIndex;
+    private int readIndex;
+
+    public TripleBuffer(Object a, Object b, Object c) {
+        buffers = new Object[] { a, b, c };
+        writeIndex = 0;
+        shared = new AtomicInteger(1);
+        readIndex = 2;
+    }
+
+    /**
+     * Gets the buffer the writer thread may fill.
+     */
+    public Object getWriteBuffer() {
+        return buffers[writeIndex];
+    }
+
+    /**
+     * Publishes the write buffer to the reader, and gives the writer another
+     * buffer to fill. Called from the writer thread.
+     */
+    public void publish() {
+        writeIndex = shared.getAndSet(writeIndex | FRESH) & ~FRESH;
+    }
+
+    /**
+     * Gets the most recently published buffer. The buffer stays the
+     * reader's until the next call. Called from the reader thread.
+     */
+    public Object getReadBuffer() {
+        if ((shared.get() & FRESH) != 0) {
+            readIndex = shared.getAndSet(readIndex) & ~FRESH;
+        }
+        return buffers[readIndex];
+    }
+}
+//-----------------------------------------------------------------
+
+abstract class PolygonRenderer {
+
+    protected ScanConverter scanConverter;
+    protected Transform3D camera;
+    protected ViewWindow viewWindow;
+    protected boolean clearViewEveryFrame;
+    protected Polygon3D sourcePolygon;
+    protected Polygon3D destPolygon;
+    protected SolidPolygon3D meshPolygon;
+    protected ViewFrustum frustum;
+    protected RenderStats stats;
+    protected FrameProfiler profiler;
+    protected AllocationMonitor allocations;
+
+    // how many times each pixel of the view was written this frame, or null
+    // when not counting
+    protected int[] overdraw;
+    private int overdrawLeft;
+    private int overdrawTop;
+    private int overdrawWidth;
+    private int overdrawHeight;
+    private BufferedImage overdrawImage;
+
+    // heatmap colors for 0, 1, 2... writes; the last is for anything more
+    private static final int[] OVERDRAW_COLORS = { 0x000000, 0x000090,
+        0x0060ff, 0x00c000, 0xe0e000, 0xff8000, 0xff0000, 0xffffff };
+
+    public PolygonRenderer(Transform3D camera, ViewWindow viewWindow) {
+        this(camera, viewWindow, true);
+    }
+
+    public PolygonRenderer(Transform3D camera, ViewWindow viewWindow, boolean clearViewEveryFrame) {
+        this.camera = camera;
+        this.viewWindow = viewWindow;
+        this.clearViewEveryFrame = clearViewEveryFrame;
+        init();
+    }
+
+    protected void init() {
+        destPolygon = new Polygon3D();
+        meshPolygon = new SolidPolygon3D();
+        scanConverter = new ScanConverter(viewWindow);
+        frustum = new ViewFrustum(viewWindow);
+        stats = new RenderStats();
+    }
+
+    public Transform3D getCamera() {
+        return camera;
+    }
+
+    /**
+     * Gets the camera-space frustum of this renderer's view window.
+     */
+    public ViewFrustum getFrustum() {
+        frustum.update();
+        return frustum;
+    }
+
+    /**
+     * Gets the counters for the current frame.
+     */
+    public RenderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the profiler the time spent in each stage of drawing is added to,
+     * or null (the default) to not time anything.
+     */
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Sets the monitor that bytes allocated by threads helping to draw are
+     * added to, or null (the default) to not count them. What the drawing
+     * thread allocates is counted by the monitor itself.
+     */
+    public void setAllocationMonitor(AllocationMonitor allocations) {
+        this.allocations = allocations;
+    }
+
+    /**
+     * Turns counting how many times each pixel is written on or off. While
+     * it is on, drawOverdraw() can show the counts as a heatmap.
+     */
+    public void setOverdrawEnabled(boolean enabled) {
+        if (!enabled) {
+            overdraw = null;
+            overdrawImage = null;
+        } else if (overdraw == null) {
+            overdraw = new int[0];
+        }
+    }
+
+    public boolean isOverdrawEnabled() {
+        return overdraw != null;
+    }
+
+    public void startFrame(Graphics2D g) {
+        stats.reset();
+        frustum.update();
+        if (overdraw != null) {
+            overdrawLeft = viewWindow.getLeftOffset();
+            overdrawTop = viewWindow.getTopOffset();
+            overdrawWidth = viewWindow.getWidth();
+            overdrawHeight = viewWindow.getHeight();
+            int size = overdrawWidth * overdrawHeight;
+            // grow only, so resizing the view doesn't allocate every frame
+            if (overdraw.length < size) {
+                overdraw = new int[size];
+            } else {
+                Arrays.fill(overdraw, 0, size, 0);
+            }
+        }
+        if (clearViewEveryFrame) {
+            clearView(g);
+        }
+    }
+
+    /**
+     * Counts a filled span in the stats, and in the overdraw counts if they
+     * are on. Every renderer calls this for each span it fills.
+     */
+    protected void countSpan(int y, int left, int right) {
+        stats.spansFilled++;
+        stats.pixelsFilled += right - left + 1;
+        if (overdraw != null) {
+            countOverdraw(y, left, right);
+        }
+    }
+
+    /**
+     * Adds one to the overdraw count of the pixels from left to right
+     * (inclusive) on row y. Only call this when overdraw counting is on.
+     */
+    protected void countOverdraw(int y, int left, int right) {
+        int offset = (y - overdrawTop) * overdrawWidth - overdrawLeft;
+        for (int x = offset + left, end = offset + right; x <= end; x++) {
+            overdraw[x]++;
+        }
+    }
+
+    /**
+     * Draws the overdraw counts of this frame over the view window as a
+     * heatmap: black for pixels never written, then blue, light blue, green,
+     * yellow, orange and red for 1 to 6 writes, and white for more. Does
+     * nothing if overdraw counting is off.
+     */
+    public void drawOverdraw(Graphics2D g) {
+        if (overdraw == null || overdrawWidth == 0) {
+            return;
+        }
+        int width = overdrawWidth;
+        int height = overdrawHeight;
+        if (overdrawImage == null || overdrawImage.getWidth() < width
+                || overdrawImage.getHeight() < height) {
+            overdrawImage = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_RGB);
+        }
+        int[] heat = ((DataBufferInt) overdrawImage.getRaster().getDataBuffer()).getData();
+        int stride = overdrawImage.getWidth();
+        int maxCount = OVERDRAW_COLORS.length - 1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0, i = y * width; x < width; x++, i++) {
+                heat[y * stride + x] = OVERDRAW_COLORS[Math.min(overdraw[i], maxCount)];
+            }
         }
+        g.drawImage(overdrawImage, overdrawLeft, overdrawTop,
+                overdrawLeft + width, overdrawTop + height, 0, 0, width, height,
+                null);
+    }
+
+    /**
+     * Clears the view window to black.
+     */
+    protected void clearView(Graphics2D g) {
+        g.setColor(Color.black);
+        g.fillRect(viewWindow.getLeftOffset(), viewWindow.getTopOffset(),
+                viewWindow.getWidth(), viewWindow.getHeight());
     }
 
     public void endFrame(Graphics2D g) {
         // do nothing, for now.
     }
 
+    /**
+     * Returns true if this renderer wants polygons in front-to-back order.
+     * Renderers that paint over what is already on the screen want polygons
+     * in back-to-front order.
+     */
+    public boolean isFrontToBack() {
+        return false;
+    }
+
+    /**
+     * Returns true if every pixel of the view window has been drawn this
+     * frame, so the remaining polygons can be skipped. Renderers that don't
+     * track coverage always return false.
+     */
+    public boolean isViewCovered() {
+        return false;
+    }
+
+    /**
+     * Returns true if, where polygons in the same plane overlap, the one
+     * drawn first stays on top. Otherwise the one drawn last does, like
+     * painting. Details in a polygon list, like a door on a wall, come after
+     * the polygon they are on, so they must be drawn first for renderers
+     * that return true.
+     */
+    public boolean isFirstDrawnOnTop() {
+        return false;
+    }
+
     public boolean draw(Graphics2D g, Polygon3D poly) {
+        if (transformAndProject(poly)) {
+            return drawProjected(g);
+        }
+        return false;
+    }
+
+    /**
+     * Draws all the polygons of an IndexedMesh. All the vertices of the mesh
+     * are transformed and projected in one batch first, so a vertex shared by
+     * several polygons is only transformed once.
+     */
+    public void draw(Graphics2D g, IndexedMesh mesh) {
+        long time = (profiler != null) ? System.nanoTime() : 0;
+        mesh.transform(camera, viewWindow);
+        if (profiler != null) {
+            profiler.time(FrameProfiler.TRANSFORM, time);
+        }
+        drawTransformed(g, mesh, null);
+    }
+
+    /**
+     * Draws one instance of an InstancedMesh. The shared mesh is transformed
+     * by the instance's transform and the camera in one step, and drawn in
+     * the instance's colors, in the same order as draw(Graphics2D,
+     * IndexedMesh), so the instance's details stay on top.
+     */
+    public void draw(Graphics2D g, InstancedMesh instances, int instance) {
+        long time = (profiler != null) ? System.nanoTime() : 0;
+        IndexedMesh mesh = instances.getMesh();
+        mesh.transform(camera, instances.getTransforms(),
+                instance * InstancedMesh.TRANSFORM_SIZE, viewWindow);
+        if (profiler != null) {
+            profiler.time(FrameProfiler.TRANSFORM, time);
+        }
+        drawTransformed(g, mesh, instances.getColors(instance));
+    }
+
+    /**
+     * Draws the polygons of a mesh whose vertices have been transformed, in
+     * the specified colors, or the mesh's own colors if colors is null. The
+     * polygons are drawn in mesh order, or in reverse if
+     * isFirstDrawnOnTop() is true.
+     */
+    private void drawTransformed(Graphics2D g, IndexedMesh mesh, Color[] colors) {
+        sourcePolygon = meshPolygon;
+        int numPolygons = mesh.getNumPolygons();
+        boolean reverse = isFirstDrawnOnTop();
+        for (int n = 0; n < numPolygons; n++) {
+            int i = reverse ? numPolygons - 1 - n : n;
+            // the back-face test, clipping and projection of each face are
+            // one step, so they are all timed as projection
+            long time = (profiler != null) ? System.nanoTime() : 0;
+            boolean visible = mesh.getProjectedPolygon(i, frustum, destPolygon);
+            if (profiler != null) {
+                profiler.time(FrameProfiler.PROJECT, time);
+            }
+            if (visible) {
+                meshPolygon.setColor((colors != null) ? colors[i] : mesh.getColor(i));
+                drawProjected(g);
+            }
+        }
+    }
+
+    /**
+     * Scan converts and draws destPolygon, which has already been projected.
+     * Returns true if the polygon covered any pixels.
+     */
+    protected boolean drawProjected(Graphics2D g) {
+        if (profiler != null) {
+            return profileDrawProjected(g);
+        }
+        if (scanConverter.convert(destPolygon)) {
+            stats.polygonsScanConverted++;
+            drawCurrentPolygon(g);
+            stats.polygonsDrawn++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean profileDrawProjected(Graphics2D g) {
+        long time = System.nanoTime();
+        boolean visible = scanConverter.convert(destPolygon);
+        time = profiler.time(FrameProfiler.SCAN, time);
+        if (visible) {
+            stats.polygonsScanConverted++;
+            drawCurrentPolygon(g);
+            profiler.time(FrameProfiler.FILL, time);
+            stats.polygonsDrawn++;
+        }
+        return visible;
+    }
+
+    /**
+     * Transforms the specified polygon to camera space, clips it, and projects
+     * it onto the view window. The result is left in destPolygon and the
+     * source polygon in sourcePolygon. Returns false if the polygon is facing
+     * away from the camera or is clipped away entirely.
+     */
+    protected boolean transformAndProject(Polygon3D poly) {
+        if (profiler != null) {
+            return profileTransformAndProject(poly);
+        }
         if (poly.isFacing(camera.getLocation())) {
             sourcePolygon = poly;
             destPolygon.setTo(poly);
             destPolygon.subtract(camera);
-            boolean visible = destPolygon.clip(-1);
+            boolean visible = destPolygon.clip(frustum);
             if (visible) {
                 destPolygon.project(viewWindow);
-                visible = scanConverter.convert(destPolygon);
-                if (visible) {
-                    drawCurrentPolygon(g);
-                    return true;
-                }
+                return true;
             }
+            stats.polygonsClipped++;
+        } else {
+            stats.polygonsBackFacing++;
         }
         return false;
     }
 
+    private boolean profileTransformAndProject(Polygon3D poly) {
+        long time = System.nanoTime();
+        boolean facing = poly.isFacing(camera.getLocation());
+        time = profiler.time(FrameProfiler.BACK_FACE, time);
+        if (!facing) {
+            stats.polygonsBackFacing++;
+            return false;
+        }
+        sourcePolygon = poly;
+        destPolygon.setTo(poly);
+        destPolygon.subtract(camera);
+        time = profiler.time(FrameProfiler.TRANSFORM, time);
+        boolean visible = destPolygon.clip(frustum);
+        time = profiler.time(FrameProfiler.CLIP, time);
+        if (visible) {
+            destPolygon.project(viewWindow);
+            profiler.time(FrameProfiler.PROJECT, time);
+        } else {
+            stats.polygonsClipped++;
+        }
+        return visible;
+    }
+
     protected abstract void drawCurrentPolygon(Graphics2D g);
 }
 //-----------------------------------------------------------------
@@ -481,11 +1719,13 @@ class SolidPolygonRenderer extends PolygonRenderer {
         }
 
         // draw the scans
+        int[] left = scanConverter.left;
+        int[] right = scanConverter.right;
         int y = scanConverter.getTopBoundary();
         while (y <= scanConverter.getBottomBoundary()) {
-            ScanConverter.Scan scan = scanConverter.getScan(y);
-            if (scan.isValid()) {
-                g.drawLine(scan.left, y, scan.right, y);
+            if (left[y] <= right[y]) {
+                g.drawLine(left[y], y, right[y], y);
+                countSpan(y, left[y], right[y]);
             }
             y++;
         }
@@ -493,1153 +1733,6062 @@ class SolidPolygonRenderer extends PolygonRenderer {
 }
 //-----------------------------------------------------------------
 
-class ScanConverter {
+/**
+ * The PixelPolygonRenderer class draws solid polygons straight into the int[]
+ * pixel array of an offscreen TYPE_INT_RGB image instead of calling
+ * Graphics2D.drawLine() for every scan. The image is drawn to the screen once
+ * per frame, in endFrame().
+ * <p>
+ * The image covers the screen from (0,0) to the bottom-right corner of the
+ * view window, so scans can be written using screen coordinates directly.
+ * When the caller owns the image being drawn on, setTargetImage() skips the
+ * offscreen image and the copy.
+ */
+class PixelPolygonRenderer extends PolygonRenderer {
 
-    private static final int SCALE_BITS = 16;
-    private static final int SCALE = 1 << SCALE_BITS;
-    private static final int SCALE_MASK = SCALE - 1;
-    protected ViewWindow view;
-    protected Scan[] scans;
-    protected int top;
-    protected int bottom;
+    protected BufferedImage image;
+    protected int[] pixels;
+    protected int stride;
+    private BufferedImage targetImage;
 
-    public static class Scan {
+    public PixelPolygonRenderer(Transform3D camera, ViewWindow viewWindow) {
+        this(camera, viewWindow, true);
+    }
 
-        public int left;
-        public int right;
+    public PixelPolygonRenderer(Transform3D camera, ViewWindow viewWindow, boolean clearViewEveryFrame) {
+        super(camera, viewWindow, clearViewEveryFrame);
+    }
 
-        public void setBoundary(int x) {
-            if (x < left) {
-                left = x;
-            }
-            if (x - 1 > right) {
-                right = x - 1;
+    /**
+     * Ensures the offscreen image is large enough to hold the view window.
+     * The image only ever grows, so shrinking the view doesn't reallocate it.
+     */
+    protected void ensureImage() {
+        int width = viewWindow.getLeftOffset() + viewWindow.getWidth();
+        int height = viewWindow.getTopOffset() + viewWindow.getHeight();
+        if (targetImage != null && targetImage.getWidth() >= width
+                && targetImage.getHeight() >= height) {
+            if (image != targetImage) {
+                image = targetImage;
+                pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                stride = image.getWidth();
             }
+            return;
         }
-
-        public void clear() {
-            left = Integer.MAX_VALUE;
-            right = Integer.MIN_VALUE;
+        if (image == null || image == targetImage || image.getWidth() < width
+                || image.getHeight() < height) {
+            if (image != null && image != targetImage) {
+                width = Math.max(width, image.getWidth());
+                height = Math.max(height, image.getHeight());
+            }
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            stride = width;
         }
+    }
 
-        public boolean isValid() {
-            return (left <= right);
+    /**
+     * Sets a TYPE_INT_RGB image to draw into directly, which must be the
+     * image the Graphics2D passed to startFrame() draws on. Each frame is
+     * then drawn in place instead of being copied to the screen, which
+     * saves the copy, and the objects Java2D creates for it. If the view
+     * doesn't fit in the image, or it is null, the offscreen image is used.
+     */
+    public void setTargetImage(BufferedImage targetImage) {
+        if (targetImage != null
+                && targetImage.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new IllegalArgumentException("Not a TYPE_INT_RGB image");
         }
+        this.targetImage = targetImage;
+    }
 
-        public void setTo(int left, int right) {
-            this.left = left;
-            this.right = right;
-        }
+    public void startFrame(Graphics2D g) {
+        ensureImage();
+        super.startFrame(g);
+    }
 
-        public boolean equals(int left, int right) {
-            return (this.left == left && this.right == right);
+    protected void clearView(Graphics2D g) {
+        int left = viewWindow.getLeftOffset();
+        int right = left + viewWindow.getWidth();
+        int bottom = viewWindow.getTopOffset() + viewWindow.getHeight();
+        for (int y = viewWindow.getTopOffset(); y < bottom; y++) {
+            int offset = y * stride;
+            Arrays.fill(pixels, offset + left, offset + right, 0);
         }
     }
 
-    public ScanConverter(ViewWindow view) {
-        this.view = view;
+    public void endFrame(Graphics2D g) {
+        if (image == targetImage) {
+            // already drawn in place
+            return;
+        }
+        int left = viewWindow.getLeftOffset();
+        int top = viewWindow.getTopOffset();
+        int right = left + viewWindow.getWidth();
+        int bottom = top + viewWindow.getHeight();
+        g.drawImage(image, left, top, right, bottom, left, top, right, bottom, null);
     }
 
-    public int getTopBoundary() {
-        return top;
+    protected void drawCurrentPolygon(Graphics2D g) {
+        fillScans(scanConverter, getColor(sourcePolygon));
     }
 
-    public int getBottomBoundary() {
-        return bottom;
-    }
+    /**
+     * Fills all the valid scans of the specified ScanConverter with a color.
+     */
+    protected void fillScans(ScanConverter scanConverter, int color) {
+        int[] left = scanConverter.left;
+        int[] right = scanConverter.right;
+        int y = scanConverter.getTopBoundary();
+        while (y <= scanConverter.getBottomBoundary()) {
+            if (left[y] <= right[y]) {
+                fillSpan(y, left[y], right[y], color);
+            }
+            y++;
+        }
+    }
 
-    public Scan getScan(int y) {
-        return scans[y];
+    /**
+     * Fills the pixels from left to right (inclusive) on row y, and counts
+     * them.
+     */
+    protected void fillSpan(int y, int left, int right, int color) {
+        countSpan(y, left, right);
+        writeSpan(y, left, right, color);
     }
 
-    protected void ensureCapacity() {
-        int height = view.getTopOffset() + view.getHeight();
-        if (scans == null || scans.length != height) {
-            scans = new Scan[height];
-            for (int i = 0; i < height; i++) {
-                scans[i] = new Scan();
-            }
-            // set top and bottom so clearCurrentScan clears all
-            top = 0;
-            bottom = height - 1;
+    /**
+     * Fills the pixels from left to right (inclusive) on row y, without
+     * counting them.
+     */
+    protected void writeSpan(int y, int left, int right, int color) {
+        int offset = y * stride;
+        for (int x = offset + left, end = offset + right; x <= end; x++) {
+            pixels[x] = color;
+        }
+    }
+
+    /**
+     * Gets the RGB color used to fill the specified polygon.
+     */
+    protected static int getColor(Polygon3D polygon) {
+        if (polygon instanceof SolidPolygon3D) {
+            return ((SolidPolygon3D) polygon).getColor().getRGB();
+        } else {
+            return Color.GREEN.getRGB();
         }
+    }
+}
+//-----------------------------------------------------------------
 
+/**
+ * The ParallelPolygonRenderer class is a PixelPolygonRenderer that splits the
+ * view window into horizontal bands and rasterizes the bands on a
+ * ForkJoinPool. Polygons are transformed, clipped and projected as they are
+ * drawn, then scan converted and filled by every band in endFrame(). Each band
+ * has its own ScanConverter and draws the polygons in the same order, so the
+ * image is identical to the one drawn by PixelPolygonRenderer.
+ * <p>
+ * Because scan conversion is deferred, draw() returns true for any polygon
+ * that survives clipping, even if it turns out to cover no pixels.
+ */
+class ParallelPolygonRenderer extends PixelPolygonRenderer {
+
+    private static final int FRAME_POLYGON_VERTICES = 10;
+    // polygons scan converted at a time by a band. The spans of a batch
+    // stay in cache until they are filled.
+    private static final int BATCH_POLYGONS = 64;
+
+    private ForkJoinPool pool;
+    private Band[] bands = new Band[0];
+    private Helper[] helpers = new Helper[0];
+    // the frame in the high 32 bits and the next band to claim in the low
+    // 32 bits, so a helper left over from an earlier frame can't claim a
+    // band of this one. Then the bands not finished yet, and the thread
+    // waiting for them.
+    private AtomicLong nextClaim = new AtomicLong();
+    private int frame;
+    private AtomicInteger bandsLeft = new AtomicInteger();
+    private volatile Thread drawThread;
+    private volatile Throwable bandFailure;
+    private int bandsTop;
+    private int bandsHeight;
+    protected Polygon3D[] framePolygons = new Polygon3D[0];
+    protected int[] frameColors = new int[0];
+    protected int numFramePolygons;
+
+    public ParallelPolygonRenderer(Transform3D camera, ViewWindow viewWindow) {
+        this(camera, viewWindow, ForkJoinPool.commonPool());
+    }
+
+    public ParallelPolygonRenderer(Transform3D camera, ViewWindow viewWindow, ForkJoinPool pool) {
+        super(camera, viewWindow, true);
+        this.pool = pool;
     }
 
-    private void clearCurrentScan() {
-        for (int i = top; i <= bottom; i++) {
-            scans[i].clear();
+    public void startFrame(Graphics2D g) {
+        super.startFrame(g);
+        numFramePolygons = 0;
+    }
+
+    protected boolean drawProjected(Graphics2D g) {
+        addFramePolygon(destPolygon, getColor(sourcePolygon));
+        stats.polygonsDrawn++;
+        return true;
+    }
+
+    /**
+     * Adds a copy of the specified projected polygon to the list of polygons
+     * to rasterize at the end of this frame.
+     */
+    protected void addFramePolygon(Polygon3D poly, int color) {
+        if (numFramePolygons == framePolygons.length) {
+            int newLength = Math.max(16, numFramePolygons * 2);
+            framePolygons = Arrays.copyOf(framePolygons, newLength);
+            frameColors = Arrays.copyOf(frameColors, newLength);
+            for (int i = numFramePolygons; i < newLength; i++) {
+                // room for a quad clipped by all six planes, so the vertex
+                // arrays don't keep growing as clipping changes
+                framePolygons[i] = new Polygon3D();
+                framePolygons[i].ensureCapacity(FRAME_POLYGON_VERTICES);
+            }
         }
-        top = Integer.MAX_VALUE;
-        bottom = Integer.MIN_VALUE;
+        framePolygons[numFramePolygons].setTo(poly);
+        frameColors[numFramePolygons] = color;
+        numFramePolygons++;
     }
 
-    public boolean convert(Polygon3D polygon) {
+    public void endFrame(Graphics2D g) {
+        if (numFramePolygons > 0) {
+            // the bands scan convert as they fill, so it's all timed as fill
+            long time = System.nanoTime();
+            ensureBands();
+            rasterizeBands();
+            if (profiler != null) {
+                profiler.time(FrameProfiler.FILL, time);
+            }
+            for (int i = 0; i < bands.length; i++) {
+                stats.spansFilled += bands[i].spansFilled;
+                stats.pixelsFilled += bands[i].pixelsFilled;
+            }
+            // every polygon is scan converted by the bands it touches
+            stats.polygonsScanConverted += numFramePolygons;
+        }
+        super.endFrame(g);
+    }
 
-        ensureCapacity();
-        clearCurrentScan();
+    /**
+     * Creates a band. Subclasses can return a Band that rasterizes
+     * differently.
+     */
+    protected Band createBand() {
+        return new Band();
+    }
 
-        int minX = view.getLeftOffset();
-        int maxX = view.getLeftOffset() + view.getWidth() - 1;
-        int minY = view.getTopOffset();
-        int maxY = view.getTopOffset() + view.getHeight() - 1;
+    /**
+     * Gets the number of rows the tops of the bands are a multiple of,
+     * counted from the top of the view window.
+     */
+    protected int getBandAlignment() {
+        return 1;
+    }
 
-        int numVertices = polygon.getNumVertices();
-        for (int i = 0; i < numVertices; i++) {
-            Vector3D v1 = polygon.getVertex(i);
-            Vector3D v2;
-            if (i == numVertices - 1) {
-                v2 = polygon.getVertex(0);
+    /**
+     * Splits the view window into bands, if it hasn't been split already.
+     * There are a few more bands than threads, which keeps the threads busy
+     * when the polygons are unevenly spread over the screen.
+     */
+    private void ensureBands() {
+        int top = viewWindow.getTopOffset();
+        int height = viewWindow.getHeight();
+        if (top == bandsTop && height == bandsHeight && bands.length > 0) {
+            return;
+        }
+        int alignment = getBandAlignment();
+        int numRows = (height + alignment - 1) / alignment;
+        int numBands = Math.max(1, Math.min(numRows, pool.getParallelism() * 2));
+        if (bands.length != numBands) {
+            bands = new Band[numBands];
+            for (int i = 0; i < numBands; i++) {
+                bands[i] = createBand();
+            }
+        }
+        for (int i = 0; i < numBands; i++) {
+            int bandTop = top + alignment * (numRows * i / numBands);
+            int bandBottom = Math.min(top + height,
+                    top + alignment * (numRows * (i + 1) / numBands)) - 1;
+            bands[i].top = bandTop;
+            bands[i].bottom = bandBottom;
+            bands[i].scanConverter.setBand(bandTop, bandBottom);
+        }
+        bandsTop = top;
+        bandsHeight = height;
+    }
+
+    /**
+     * Rasterizes all bands of the current frame. Helper tasks on the pool
+     * and this thread claim bands until none are left, then this thread
+     * parks until the last claimed band is finished. Every band nobody else
+     * claimed is rasterized here, so a frame finishes even if the pool never
+     * runs the helpers. Waiting with ForkJoinPool.invoke() would create
+     * objects whenever it has to block.
+     */
+    private void rasterizeBands() {
+        drawThread = Thread.currentThread();
+        frame++;
+        bandsLeft.set(bands.length);
+        nextClaim.set((long) frame << 32);
+        int numHelpers = Math.min(pool.getParallelism(), bands.length - 1);
+        if (helpers.length != numHelpers) {
+            helpers = new Helper[numHelpers];
+        }
+        for (int i = 0; i < numHelpers; i++) {
+            // a helper still queued from an earlier frame finds its frame
+            // over when it runs, and is queued again once it is done
+            if (helpers[i] == null) {
+                helpers[i] = new Helper();
+            } else if (helpers[i].isDone()) {
+                helpers[i].reinitialize();
             } else {
-                v2 = polygon.getVertex(i + 1);
+                continue;
             }
+            helpers[i].frame = frame;
+            helpers[i].frameBands = bands;
+            pool.execute(helpers[i]);
+        }
+        rasterizeClaimedBands(frame, bands);
+        while (bandsLeft.get() > 0) {
+            LockSupport.park(this);
+        }
+        if (bandFailure != null) {
+            Throwable failure = bandFailure;
+            bandFailure = null;
+            throw new RuntimeException("Couldn't rasterize a band", failure);
+        }
+    }
 
-            // ensure v1.y < v2.y
-            if (v1.y > v2.y) {
-                Vector3D temp = v1;
-                v1 = v2;
-                v2 = temp;
+    /**
+     * Claims and rasterizes bands of the specified frame until there are
+     * none left, or until a later frame has started. On a pool thread, the
+     * bytes allocated by each band are added to the allocation monitor
+     * before the band counts as finished, so they are charged to the frame
+     * being drawn.
+     */
+    private void rasterizeClaimedBands(int claimFrame, Band[] frameBands) {
+        AllocationMonitor monitor = null;
+        if (Thread.currentThread() != drawThread) {
+            monitor = allocations;
+        }
+        while (true) {
+            long claim = nextClaim.get();
+            int i = (int) claim;
+            if ((int) (claim >>> 32) != claimFrame || i >= frameBands.length) {
+                return;
             }
-            float dy = v2.y - v1.y;
+            if (!nextClaim.compareAndSet(claim, claim + 1)) {
+                continue;
+            }
+            long startBytes = (monitor != null) ? monitor.getThreadAllocatedBytes() : 0;
+            try {
+                frameBands[i].rasterize();
+            } catch (RuntimeException ex) {
+                bandFailure = ex;
+            } catch (Error ex) {
+                bandFailure = ex;
+            } finally {
+                if (monitor != null) {
+                    monitor.add(monitor.getThreadAllocatedBytes() - startBytes);
+                }
+                if (bandsLeft.decrementAndGet() == 0) {
+                    LockSupport.unpark(drawThread);
+                }
+            }
+        }
+    }
 
-            // ignore horizontal lines
-            if (dy == 0) {
+    /**
+     * Rasterizes bands of one frame on the pool. The frame and its bands
+     * are set before the helper is queued, and the helper stops claiming
+     * once a later frame has started.
+     */
+    private class Helper extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int frame;
+        private Band[] frameBands;
+
+        protected void compute() {
+            rasterizeClaimedBands(frame, frameBands);
+        }
+    }
+
+    /**
+     * Rasterizes every polygon of the current frame into one band. The
+     * polygons are scan converted a batch at a time into a list of spans,
+     * which is then filled in order.
+     */
+    protected class Band {
+
+        // the rows of the band, inclusive
+        protected int top;
+        protected int bottom;
+        protected ScanConverter scanConverter = new ScanConverter(viewWindow);
+        private SpanList spans = new SpanList();
+        // counted per band, since the bands run at the same time
+        protected int spansFilled;
+        protected int pixelsFilled;
+
+        public void rasterize() {
+            spansFilled = 0;
+            pixelsFilled = 0;
+            boolean countOverdraw = isOverdrawEnabled();
+            // a polygon has at most one span per row of the band, so the
+            // list only grows when the band does
+            spans.ensureCapacity(BATCH_POLYGONS * (bottom - top + 1));
+            for (int start = 0; start < numFramePolygons; start += BATCH_POLYGONS) {
+                int end = Math.min(start + BATCH_POLYGONS, numFramePolygons);
+                spans.clear();
+                scanConverter.convert(framePolygons, start, end, spans);
+                int[] data = spans.data;
+                int length = spans.getLength();
+                for (int i = 0; i < length; i += SpanList.SPAN_SIZE) {
+                    int y = data[i];
+                    int left = data[i + 1];
+                    int right = data[i + 2];
+                    writeSpan(y, left, right, frameColors[data[i + 3]]);
+                    pixelsFilled += right - left + 1;
+                    if (countOverdraw) {
+                        // the bands' rows don't overlap
+                        countOverdraw(y, left, right);
+                    }
+                }
+                spansFilled += spans.getNumSpans();
+            }
+        }
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The TiledPolygonRenderer class is a ParallelPolygonRenderer that rasterizes
+ * with edge functions over tiles of 8x8 pixels, instead of walking the edges
+ * of each polygon row by row. Each edge of a convex polygon is a linear
+ * function of the pixel position that is not negative on the inside. A tile
+ * where one edge is negative at every pixel is skipped, a tile where no edge
+ * is negative at any pixel is filled whole, and the rest are filled row by
+ * row with spans worked out from the edge functions. Neighboring whole tiles
+ * are filled together, so the cost of a large polygon grows with the number
+ * of tiles it covers, not with its rows and edges.
+ * <p>
+ * The bands are whole rows of tiles. Vertices are snapped to 1/16 pixel, and
+ * a pixel exactly on an edge belongs to the polygon if the edge is a left or
+ * top edge, like with the ScanConverter. The snapping means a few edge
+ * pixels can differ from the ones PixelPolygonRenderer draws.
+ */
+class TiledPolygonRenderer extends ParallelPolygonRenderer {
+
+    private static final int TILE_BITS = 3;
+    public static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int SUBPIXEL_BITS = 4;
+    private static final float SUBPIXEL_SCALE = 1 << SUBPIXEL_BITS;
+
+    private static final int OUTSIDE = 0;
+    private static final int PARTIAL = 1;
+    private static final int COVERED = 2;
+
+    // edge e of the frame is edgeA[e] * x + edgeB[e] * y + edgeC[e] at the
+    // pixel (x, y). The edges of polygon i go from edgeStart[i] up to, but
+    // not including, edgeStart[i + 1].
+    private long[] edgeA = new long[64];
+    private long[] edgeB = new long[64];
+    private long[] edgeC = new long[64];
+    // 1 / edgeA[e], or 0 for horizontal edges
+    private double[] edgeInverseA = new double[64];
+    private int[] edgeStart = new int[17];
+    // the pixels each polygon may cover, within the view window, inclusive
+    private int[] polygonLeft = new int[16];
+    private int[] polygonTop = new int[16];
+    private int[] polygonRight = new int[16];
+    private int[] polygonBottom = new int[16];
+    private int[] polygonColor = new int[16];
+    // the snapped vertices of the polygon being added
+    private int[] snappedX = new int[16];
+    private int[] snappedY = new int[16];
+
+    public TiledPolygonRenderer(Transform3D camera, ViewWindow viewWindow) {
+        super(camera, viewWindow);
+    }
+
+    public TiledPolygonRenderer(Transform3D camera, ViewWindow viewWindow, ForkJoinPool pool) {
+        super(camera, viewWindow, pool);
+    }
+
+    protected boolean drawProjected(Graphics2D g) {
+        if (addTiledPolygon(destPolygon, getColor(sourcePolygon))) {
+            stats.polygonsDrawn++;
+            return true;
+        }
+        return false;
+    }
+
+    protected Band createBand() {
+        return new TileBand();
+    }
+
+    protected int getBandAlignment() {
+        return TILE_SIZE;
+    }
+
+    /**
+     * Sets up the edge functions and bounds of the specified convex,
+     * projected polygon, to rasterize at the end of this frame. Returns false
+     * if the polygon can't cover any pixels.
+     */
+    private boolean addTiledPolygon(Polygon3D poly, int color) {
+        int numVertices = poly.getNumVertices();
+        if (snappedX.length < numVertices) {
+            snappedX = new int[numVertices * 2];
+            snappedY = new int[numVertices * 2];
+        }
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < numVertices; i++) {
+            Vector3D v = poly.getVertex(i);
+            int x = MoreMath.ceil(v.x * SUBPIXEL_SCALE - .5f);
+            int y = MoreMath.ceil(v.y * SUBPIXEL_SCALE - .5f);
+            snappedX[i] = x;
+            snappedY[i] = y;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        // the pixels inside the bounding box and the view window
+        int left = Math.max(viewWindow.getLeftOffset(),
+                (minX + (1 << SUBPIXEL_BITS) - 1) >> SUBPIXEL_BITS);
+        int top = Math.max(viewWindow.getTopOffset(),
+                (minY + (1 << SUBPIXEL_BITS) - 1) >> SUBPIXEL_BITS);
+        int right = Math.min(viewWindow.getLeftOffset() + viewWindow.getWidth() - 1,
+                maxX >> SUBPIXEL_BITS);
+        int bottom = Math.min(viewWindow.getTopOffset() + viewWindow.getHeight() - 1,
+                maxY >> SUBPIXEL_BITS);
+        if (left > right || top > bottom) {
+            return false;
+        }
+
+        // twice the signed area, which is negative if the vertices go
+        // counterclockwise on the screen
+        long area = 0;
+        for (int i = 0; i < numVertices; i++) {
+            int j = (i == numVertices - 1) ? 0 : i + 1;
+            area += (long) snappedX[i] * snappedY[j] - (long) snappedX[j] * snappedY[i];
+        }
+        if (area == 0) {
+            return false;
+        }
+
+        ensureTiledCapacity(numVertices);
+        int start = edgeStart[numFramePolygons];
+        int e = start;
+        for (int i = 0; i < numVertices; i++) {
+            int j = (i == numVertices - 1) ? 0 : i + 1;
+            long a = snappedY[i] - snappedY[j];
+            long b = snappedX[j] - snappedX[i];
+            if (a == 0 && b == 0) {
+                // repeated vertex
                 continue;
             }
+            if (area < 0) {
+                a = -a;
+                b = -b;
+            }
+            long c = -(a * snappedX[i] + b * snappedY[i]);
+            // pixels exactly on a right or bottom edge are outside
+            if (a < 0 || (a == 0 && b < 0)) {
+                c--;
+            }
+            // step whole pixels
+            edgeA[e] = a << SUBPIXEL_BITS;
+            edgeB[e] = b << SUBPIXEL_BITS;
+            edgeC[e] = c;
+            edgeInverseA[e] = (a == 0) ? 0 : 1.0 / edgeA[e];
+            e++;
+        }
 
-            int startY = Math.max(MoreMath.ceil(v1.y), minY);
-            int endY = Math.min(MoreMath.ceil(v2.y) - 1, maxY);
-            top = Math.min(top, startY);
-            bottom = Math.max(bottom, endY);
-            float dx = v2.x - v1.x;
+        polygonLeft[numFramePolygons] = left;
+        polygonTop[numFramePolygons] = top;
+        polygonRight[numFramePolygons] = right;
+        polygonBottom[numFramePolygons] = bottom;
+        polygonColor[numFramePolygons] = color;
+        numFramePolygons++;
+        edgeStart[numFramePolygons] = e;
+        return true;
+    }
 
-            // special case: vertical line
-            if (dx == 0) {
-                int x = MoreMath.ceil(v1.x);
-                // ensure x within view bounds
-                x = Math.min(maxX + 1, Math.max(x, minX));
-                for (int y = startY; y <= endY; y++) {
-                    scans[y].setBoundary(x);
+    /**
+     * Makes room for one more polygon with up to the specified number of
+     * edges.
+     */
+    private void ensureTiledCapacity(int numEdges) {
+        if (numFramePolygons + 1 == edgeStart.length) {
+            int newLength = edgeStart.length * 2;
+            edgeStart = Arrays.copyOf(edgeStart, newLength);
+            polygonLeft = Arrays.copyOf(polygonLeft, newLength);
+            polygonTop = Arrays.copyOf(polygonTop, newLength);
+            polygonRight = Arrays.copyOf(polygonRight, newLength);
+            polygonBottom = Arrays.copyOf(polygonBottom, newLength);
+            polygonColor = Arrays.copyOf(polygonColor, newLength);
+        }
+        int length = edgeStart[numFramePolygons] + numEdges;
+        if (length > edgeA.length) {
+            int newLength = Math.max(length, edgeA.length * 2);
+            edgeA = Arrays.copyOf(edgeA, newLength);
+            edgeB = Arrays.copyOf(edgeB, newLength);
+            edgeC = Arrays.copyOf(edgeC, newLength);
+            edgeInverseA = Arrays.copyOf(edgeInverseA, newLength);
+        }
+    }
+
+    /**
+     * Rasterizes every polygon of the current frame into one band of tile
+     * rows. The tiles line up with the top left corner of the view window.
+     */
+    private class TileBand extends Band {
+
+        private boolean countOverdraw;
+        // the edges that cross the partial tiles not added yet
+        private int[] crossingEdges = new int[16];
+        private int numCrossingEdges;
+        // the spans of the rows of the partial tiles
+        private int[] rowLeft = new int[TILE_SIZE];
+        private int[] rowRight = new int[TILE_SIZE];
+        // the spans of the current row of tiles not filled yet, from row
+        // spanTop down. The pieces of a row found in neighboring tiles are
+        // joined, so each row is usually filled with one span.
+        private int[] spanLeft = new int[TILE_SIZE];
+        private int[] spanRight = new int[TILE_SIZE];
+        private int spanTop;
+        private int spanColor;
+
+        public void rasterize() {
+            spansFilled = 0;
+            pixelsFilled = 0;
+            countOverdraw = isOverdrawEnabled();
+            for (int i = 0; i < numFramePolygons; i++) {
+                int polyTop = Math.max(polygonTop[i], top);
+                int polyBottom = Math.min(polygonBottom[i], bottom);
+                if (polyTop <= polyBottom) {
+                    rasterize(i, polyTop, polyBottom);
                 }
-            } else {
-                // scan-convert this edge (line equation)
-                float gradient = dx / dy;
+            }
+        }
 
-                // (faster version)
-                // trim start of line
-                float startX = v1.x + (startY - v1.y) * gradient;
-                if (startX < minX) {
-                    int yInt = (int) (v1.y + (minX - v1.x) / gradient);
-                    yInt = Math.min(yInt, endY);
-                    while (startY <= yInt) {
-                        scans[startY].setBoundary(minX);
-                        startY++;
-                    }
-                } else if (startX > maxX) {
-                    int yInt = (int) (v1.y + (maxX - v1.x) / gradient);
-                    yInt = Math.min(yInt, endY);
-                    while (startY <= yInt) {
-                        scans[startY].setBoundary(maxX + 1);
-                        startY++;
+        /**
+         * Rasterizes the rows from polyTop to polyBottom of polygon i. For
+         * each row of tiles, the edge functions are solved for the tiles the
+         * polygon may touch and the tiles it surely covers. The covered tiles
+         * are filled as one run, and only the tiles between the two ranges
+         * are checked one at a time. Neighboring partial tiles are added
+         * together, so an edge crossing several of them is followed once.
+         */
+        private void rasterize(int i, int polyTop, int polyBottom) {
+            int left = polygonLeft[i];
+            int right = polygonRight[i];
+            int firstEdge = edgeStart[i];
+            int lastEdge = edgeStart[i + 1];
+            int tileLeft = left - ((left - viewWindow.getLeftOffset()) & TILE_MASK);
+            int tileTop = polyTop - ((polyTop - viewWindow.getTopOffset()) & TILE_MASK);
+            spanColor = polygonColor[i];
+            int lastColumn = (right - tileLeft) >> TILE_BITS;
+
+            for (int tileY = tileTop; tileY <= polyBottom; tileY += TILE_SIZE) {
+                // the x of the top left corner of the first and last tiles
+                // where each edge may be non-negative somewhere (touch) and
+                // is non-negative everywhere (cover). Solving in floating
+                // point can be a pixel off, so the ranges are widened and
+                // narrowed by one.
+                double touchLeft = tileLeft;
+                double touchRight = right;
+                double coverLeft = tileLeft;
+                double coverRight = right;
+                for (int e = firstEdge; e < lastEdge; e++) {
+                    long a = edgeA[e];
+                    long b = edgeB[e];
+                    long d = b * tileY + edgeC[e];
+                    long max = d + TILE_MASK * (Math.max(a, 0) + Math.max(b, 0));
+                    long min = d + TILE_MASK * (Math.min(a, 0) + Math.min(b, 0));
+                    double inverse = edgeInverseA[e];
+                    if (a > 0) {
+                        touchLeft = Math.max(touchLeft, -max * inverse - 1);
+                        coverLeft = Math.max(coverLeft, -min * inverse + 1);
+                    } else if (a < 0) {
+                        touchRight = Math.min(touchRight, -max * inverse + 1);
+                        coverRight = Math.min(coverRight, -min * inverse - 1);
+                    } else {
+                        if (max < 0) {
+                            touchRight = Double.NEGATIVE_INFINITY;
+                        }
+                        if (min < 0) {
+                            coverRight = Double.NEGATIVE_INFINITY;
+                        }
                     }
                 }
-
-                if (startY > endY) {
+                if (touchLeft > touchRight) {
                     continue;
                 }
 
-                // trim back of line
-                float endX = v1.x + (endY - v1.y) * gradient;
-                if (endX < minX) {
-                    int yInt = MoreMath.ceil(v1.y + (minX - v1.x) / gradient);
-                    yInt = Math.max(yInt, startY);
-                    while (endY >= yInt) {
-                        scans[endY].setBoundary(minX);
-                        endY--;
+                // the same, as columns of tiles
+                int firstColumn = ((int) Math.ceil(touchLeft) - tileLeft + TILE_MASK) >> TILE_BITS;
+                int endColumn = Math.min(lastColumn,
+                        ((int) Math.floor(touchRight) - tileLeft) >> TILE_BITS);
+                int firstCovered = Integer.MAX_VALUE;
+                int lastCovered = Integer.MIN_VALUE;
+                if (coverLeft <= coverRight) {
+                    firstCovered = ((int) Math.ceil(coverLeft) - tileLeft + TILE_MASK) >> TILE_BITS;
+                    lastCovered = Math.min(endColumn,
+                            ((int) Math.floor(coverRight) - tileLeft) >> TILE_BITS);
+                }
+
+                int rowTop = Math.max(tileY, polyTop);
+                int rowBottom = Math.min(tileY + TILE_MASK, polyBottom);
+                startSpans(rowTop, rowBottom);
+                // the partial tiles not added yet, if any
+                int partialLeft = Integer.MIN_VALUE;
+                int partialRight = Integer.MIN_VALUE;
+                numCrossingEdges = 0;
+                for (int column = firstColumn; column <= endColumn; column++) {
+                    int tileX = tileLeft + (column << TILE_BITS);
+                    int tileRight = Math.min(tileX + TILE_MASK, right);
+                    int coverage;
+                    if (column >= firstCovered && column <= lastCovered) {
+                        coverage = COVERED;
+                        tileRight = Math.min(tileLeft + (lastCovered << TILE_BITS) + TILE_MASK,
+                                right);
+                        column = lastCovered;
+                    } else {
+                        coverage = classifyTile(firstEdge, lastEdge, tileX, tileY);
                     }
-                } else if (endX > maxX) {
-                    int yInt = MoreMath.ceil(v1.y + (maxX - v1.x) / gradient);
-                    yInt = Math.max(yInt, startY);
-                    while (endY >= yInt) {
-                        scans[endY].setBoundary(maxX + 1);
-                        endY--;
+                    if (coverage == PARTIAL) {
+                        if (partialLeft == Integer.MIN_VALUE) {
+                            partialLeft = Math.max(tileX, left);
+                        }
+                        partialRight = tileRight;
+                        continue;
                     }
+                    if (partialLeft != Integer.MIN_VALUE) {
+                        addPartialTiles(partialLeft, partialRight, rowTop, rowBottom);
+                        partialLeft = Integer.MIN_VALUE;
+                    }
+                    numCrossingEdges = 0;
+                    if (coverage == COVERED) {
+                        addRows(Math.max(tileX, left), tileRight, rowTop, rowBottom);
+                    }
+                }
+                if (partialLeft != Integer.MIN_VALUE) {
+                    addPartialTiles(partialLeft, partialRight, rowTop, rowBottom);
+                }
+                fillSpans(rowTop, rowBottom);
+            }
+        }
+
+        /**
+         * Checks the pixels of the tile with the specified top left corner
+         * against the edges from firstEdge to lastEdge (exclusive). Returns
+         * OUTSIDE, PARTIAL or COVERED. The edges that cross the tile are
+         * added to crossingEdges, if they aren't there already.
+         */
+        private int classifyTile(int firstEdge, int lastEdge, int tileX, int tileY) {
+            if (crossingEdges.length < lastEdge - firstEdge) {
+                crossingEdges = Arrays.copyOf(crossingEdges, (lastEdge - firstEdge) * 2);
+            }
+            int coverage = COVERED;
+            for (int e = firstEdge; e < lastEdge; e++) {
+                long a = edgeA[e];
+                long b = edgeB[e];
+                long corner = a * tileX + b * tileY + edgeC[e];
+                // the largest and smallest values are at opposite corners
+                long max = corner + TILE_MASK * (Math.max(a, 0) + Math.max(b, 0));
+                if (max < 0) {
+                    return OUTSIDE;
                 }
+                long min = corner + TILE_MASK * (Math.min(a, 0) + Math.min(b, 0));
+                if (min < 0) {
+                    coverage = PARTIAL;
+                    addCrossingEdge(e);
+                }
+            }
+            return coverage;
+        }
 
-                if (startY > endY) {
-                    continue;
+        private void addCrossingEdge(int e) {
+            for (int k = 0; k < numCrossingEdges; k++) {
+                if (crossingEdges[k] == e) {
+                    return;
                 }
+            }
+            crossingEdges[numCrossingEdges++] = e;
+        }
 
-                // line equation using integers
-                int xScaled = (int) (SCALE * v1.x + SCALE * (startY - v1.y)
-                        * dx / dy)
-                        + SCALE_MASK;
-                int dxScaled = (int) (dx * SCALE / dy);
+        /**
+         * Adds the part of each row from rowTop to rowBottom between left
+         * and right (inclusive) that is inside the edges crossing the partial
+         * tiles there. The other edges are known to be inside all of those
+         * tiles. Since the polygon is convex, that's one span per row. Each
+         * crossing edge is followed down the rows like an edge walker would,
+         * but exactly, with the edge function instead of a slope.
+         */
+        private void addPartialTiles(int left, int right, int rowTop, int rowBottom) {
+            int numRows = rowBottom - rowTop + 1;
+            for (int row = 0; row < numRows; row++) {
+                rowLeft[row] = left;
+                rowRight[row] = right;
+            }
+            int width = right - left;
+            for (int k = 0; k < numCrossingEdges; k++) {
+                int e = crossingEdges[k];
+                long a = edgeA[e];
+                long b = edgeB[e];
+                // the value at left + dx, where dx follows the edge from row
+                // to row, so it only moves a little each time
+                long value = a * left + b * rowTop + edgeC[e];
+                int dx = 0;
+                if (a > 0) {
+                    // inside from the first x where the value reaches 0
+                    for (int row = 0; row < numRows; row++, value += b) {
+                        while (value < 0 && dx <= width) {
+                            value += a;
+                            dx++;
+                        }
+                        while (dx > 0 && value - a >= 0) {
+                            value -= a;
+                            dx--;
+                        }
+                        rowLeft[row] = Math.max(rowLeft[row], left + dx);
+                    }
+                } else if (a < 0) {
+                    // inside up to the last x where the value is still 0
+                    for (int row = 0; row < numRows; row++, value += b) {
+                        while (dx < width && value + a >= 0) {
+                            value += a;
+                            dx++;
+                        }
+                        while (dx > 0 && value < 0) {
+                            value -= a;
+                            dx--;
+                        }
+                        if (value < 0) {
+                            rowLeft[row] = right + 1;
+                        } else {
+                            rowRight[row] = Math.min(rowRight[row], left + dx);
+                        }
+                    }
+                } else {
+                    for (int row = 0; row < numRows; row++, value += b) {
+                        if (value < 0) {
+                            rowLeft[row] = right + 1;
+                        }
+                    }
+                }
+            }
+            for (int row = 0; row < numRows; row++) {
+                if (rowLeft[row] <= rowRight[row]) {
+                    addSpan(rowTop + row, rowLeft[row], rowRight[row]);
+                }
+            }
+        }
 
-                for (int y = startY; y <= endY; y++) {
-                    scans[y].setBoundary(xScaled >> SCALE_BITS);
-                    xScaled += dxScaled;
+        /**
+         * Adds the pixels from left to right (inclusive) on every row from
+         * rowTop to rowBottom.
+         */
+        private void addRows(int left, int right, int rowTop, int rowBottom) {
+            for (int y = rowTop; y <= rowBottom; y++) {
+                addSpan(y, left, right);
+            }
+        }
+
+        private void startSpans(int rowTop, int rowBottom) {
+            spanTop = rowTop;
+            for (int row = 0; row <= rowBottom - rowTop; row++) {
+                spanLeft[row] = Integer.MAX_VALUE;
+                spanRight[row] = Integer.MIN_VALUE;
+            }
+        }
+
+        /**
+         * Adds a span to fill on row y. The tiles are visited from left to
+         * right, so a span usually continues the one before it.
+         */
+        private void addSpan(int y, int left, int right) {
+            int row = y - spanTop;
+            if (left == spanRight[row] + 1) {
+                spanRight[row] = right;
+                return;
+            }
+            if (spanLeft[row] <= spanRight[row]) {
+                fill(y, spanLeft[row], spanRight[row], spanColor);
+            }
+            spanLeft[row] = left;
+            spanRight[row] = right;
+        }
+
+        private void fillSpans(int rowTop, int rowBottom) {
+            for (int row = 0; row <= rowBottom - rowTop; row++) {
+                if (spanLeft[row] <= spanRight[row]) {
+                    fill(rowTop + row, spanLeft[row], spanRight[row], spanColor);
                 }
             }
         }
 
-        // check if visible (any valid scans)
-        for (int i = top; i <= bottom; i++) {
-            if (scans[i].isValid()) {
-                return true;
+        private void fill(int y, int left, int right, int color) {
+            writeSpan(y, left, right, color);
+            spansFilled++;
+            pixelsFilled += right - left + 1;
+            if (countOverdraw) {
+                // the bands' rows don't overlap
+                countOverdraw(y, left, right);
             }
         }
-        return false;
     }
 }
 //-----------------------------------------------------------------
 
-class MoreMath {
+/**
+ * The ZBufferPolygonRenderer class is a PixelPolygonRenderer that keeps a
+ * depth value for every pixel, so polygons can be drawn in any order. The
+ * depth is 1/z, which is linear in screen space, interpolated along each scan
+ * in fixed point. Larger values are closer to the camera. At equal depth the
+ * polygon drawn last wins, so coplanar details like doors still show up.
+ * <p>
+ * Each entry of the depth buffer holds a frame stamp above the depth bits.
+ * Entries written in an earlier frame always have a smaller stamp, so the
+ * buffer only has to be cleared when the stamp wraps around.
+ */
+class ZBufferPolygonRenderer extends PixelPolygonRenderer {
 
-    /**
-     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
-     * and 0 otherwise.
-     */
-    public static int sign(short v) {
-        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    private static final int DEPTH_BITS = 24;
+    private static final int INTERP_BITS = 30;
+    private static final int INTERP_SHIFT = INTERP_BITS - DEPTH_BITS;
+    private static final int MAX_INTERP = (1 << INTERP_BITS) - 1;
+    private static final int MAX_FRAME = 127;
+
+    protected int[] depthBuffer;
+    private int frame;
+    private int frameStamp;
+
+    public ZBufferPolygonRenderer(Transform3D camera, ViewWindow viewWindow) {
+        this(camera, viewWindow, true);
+    }
+
+    public ZBufferPolygonRenderer(Transform3D camera, ViewWindow viewWindow, boolean clearViewEveryFrame) {
+        super(camera, viewWindow, clearViewEveryFrame);
+    }
+
+    public boolean isFrontToBack() {
+        // hidden pixels fail the depth test without being written
+        return true;
+    }
+
+    protected void ensureImage() {
+        super.ensureImage();
+        if (depthBuffer == null || depthBuffer.length != pixels.length) {
+            depthBuffer = new int[pixels.length];
+            frame = 0;
+        }
+    }
+
+    public void startFrame(Graphics2D g) {
+        super.startFrame(g);
+        frame++;
+        if (frame > MAX_FRAME) {
+            Arrays.fill(depthBuffer, 0);
+            frame = 1;
+        }
+        frameStamp = frame << DEPTH_BITS;
+    }
+
+    protected void drawCurrentPolygon(Graphics2D g) {
+        // The plane of the polygon in camera space is n.v = d. On the
+        // screen, 1/-z is then a*x + b*y + c. The projected vertices keep
+        // their camera-space z, which gives d from any vertex.
+        Vector3D n = destPolygon.getNormal();
+        float distance = viewWindow.getDistance();
+        float centerX = viewWindow.convertFromViewXToScreenX(0);
+        float centerY = viewWindow.convertFromViewYToScreenY(0);
+        Vector3D v0 = destPolygon.getVertex(0);
+        float d = -v0.z * (n.x * (v0.x - centerX) / distance
+                - n.y * (v0.y - centerY) / distance - n.z);
+        if (d == 0) {
+            // edge-on to the camera
+            return;
+        }
+        float a = n.x / (distance * d);
+        float b = -n.y / (distance * d);
+        float c = (n.y * centerY / distance - n.x * centerX / distance - n.z) / d;
+
+        int color = getColor(sourcePolygon);
+        int[] left = scanConverter.left;
+        int[] right = scanConverter.right;
+        int y = scanConverter.getTopBoundary();
+        while (y <= scanConverter.getBottomBoundary()) {
+            if (left[y] <= right[y]) {
+                float rowDepth = b * y + c;
+                int leftDepth = toFixed(a * left[y] + rowDepth);
+                int rightDepth = toFixed(a * right[y] + rowDepth);
+                fillSpan(y, left[y], right[y], color, leftDepth, rightDepth);
+            }
+            y++;
+        }
+    }
+
+    /**
+     * Fills the pixels from left to right (inclusive) on row y that are closer
+     * than the depth already in the depth buffer. The depth is interpolated
+     * from leftDepth to rightDepth.
+     */
+    protected void fillSpan(int y, int left, int right, int color, int leftDepth, int rightDepth) {
+        if (overdraw != null) {
+            countSpanDepth(y, left, right, leftDepth, rightDepth);
+        }
+        int dz = (right > left) ? (rightDepth - leftDepth) / (right - left) : 0;
+        int z = leftDepth;
+        int offset = y * stride;
+        int written = 0;
+        for (int x = offset + left, end = offset + right; x <= end; x++) {
+            int depth = frameStamp | (z >> INTERP_SHIFT);
+            if (depth >= depthBuffer[x]) {
+                depthBuffer[x] = depth;
+                pixels[x] = color;
+                written++;
+            }
+            z += dz;
+        }
+        stats.spansFilled++;
+        stats.pixelsFilled += written;
+    }
+
+    /**
+     * Adds to the overdraw counts the pixels fillSpan() is about to write,
+     * that is, the ones that pass the depth test.
+     */
+    private void countSpanDepth(int y, int left, int right, int leftDepth, int rightDepth) {
+        int dz = (right > left) ? (rightDepth - leftDepth) / (right - left) : 0;
+        int z = leftDepth;
+        int offset = y * stride;
+        for (int x = left; x <= right; x++) {
+            int depth = frameStamp | (z >> INTERP_SHIFT);
+            if (depth >= depthBuffer[offset + x]) {
+                countOverdraw(y, x, x);
+            }
+            z += dz;
+        }
+    }
+
+    /**
+     * Converts 1/z to fixed point, clamped to the range of the depth buffer.
+     */
+    private static int toFixed(float invZ) {
+        float scaled = invZ * (1 << INTERP_BITS);
+        if (scaled <= 0) {
+            return 0;
+        } else if (scaled >= MAX_INTERP) {
+            return MAX_INTERP;
+        } else {
+            return (int) scaled;
+        }
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The SpanBufferPolygonRenderer class is a PixelPolygonRenderer for polygons
+ * drawn in front-to-back order, such as by a BSPTree. A SpanBuffer records
+ * which parts of each row are already filled, and every scan is clipped
+ * against it, so each pixel is written only once, by the nearest polygon. A
+ * polygon whose scans are all hidden is rejected without touching any
+ * pixels, and once every row is covered the rest of the frame is skipped.
+ * <p>
+ * Instead of clearing the whole view first, only the pixels left uncovered at
+ * the end of the frame are cleared.
+ */
+class SpanBufferPolygonRenderer extends PixelPolygonRenderer {
+
+    protected SpanBuffer spanBuffer = new SpanBuffer();
+    private boolean clearUncovered;
+
+    public SpanBufferPolygonRenderer(Transform3D camera, ViewWindow viewWindow) {
+        this(camera, viewWindow, true);
+    }
+
+    public SpanBufferPolygonRenderer(Transform3D camera, ViewWindow viewWindow, boolean clearViewEveryFrame) {
+        super(camera, viewWindow, clearViewEveryFrame);
+    }
+
+    public boolean isFrontToBack() {
+        return true;
+    }
+
+    public boolean isViewCovered() {
+        return spanBuffer.isFull();
+    }
+
+    public boolean isFirstDrawnOnTop() {
+        return true;
+    }
+
+    public void startFrame(Graphics2D g) {
+        spanBuffer.reset(viewWindow.getLeftOffset(), viewWindow.getTopOffset(),
+                viewWindow.getWidth(), viewWindow.getHeight());
+        clearUncovered = false;
+        super.startFrame(g);
+    }
+
+    protected void clearView(Graphics2D g) {
+        // cleared in endFrame(), where the uncovered pixels are known
+        clearUncovered = true;
+    }
+
+    public void endFrame(Graphics2D g) {
+        if (clearUncovered) {
+            int top = viewWindow.getTopOffset();
+            int bottom = top + viewWindow.getHeight();
+            for (int y = top; y < bottom; y++) {
+                int numPieces = spanBuffer.getGaps(y);
+                for (int i = 0; i < numPieces; i++) {
+                    int offset = y * stride;
+                    Arrays.fill(pixels, offset + spanBuffer.pieceLeft[i],
+                            offset + spanBuffer.pieceRight[i] + 1, 0);
+                }
+            }
+        }
+        super.endFrame(g);
+    }
+
+    protected boolean drawProjected(Graphics2D g) {
+        if (spanBuffer.isFull() || !scanConverter.convert(destPolygon)) {
+            return false;
+        }
+        stats.polygonsScanConverted++;
+        int color = getColor(sourcePolygon);
+        boolean visible = false;
+        int[] left = scanConverter.left;
+        int[] right = scanConverter.right;
+        int bottom = scanConverter.getBottomBoundary();
+        for (int y = scanConverter.getTopBoundary(); y <= bottom; y++) {
+            if (left[y] <= right[y]) {
+                int numPieces = spanBuffer.insert(y, left[y], right[y]);
+                for (int i = 0; i < numPieces; i++) {
+                    fillSpan(y, spanBuffer.pieceLeft[i], spanBuffer.pieceRight[i], color);
+                }
+                visible |= (numPieces > 0);
+            }
+        }
+        if (visible) {
+            stats.polygonsDrawn++;
+        }
+        return visible;
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The SpanBuffer class (an S-buffer) keeps, for each row of the view window,
+ * a sorted list of the x ranges that have been filled. Adjacent and
+ * overlapping ranges are merged, so a row that is completely filled is a
+ * single range. Inserting a span gives back the pieces of it that weren't
+ * already filled.
+ */
+class SpanBuffer {
+
+    /**
+     * The pieces found by the last call to insert() or getGaps(), from
+     * pieceLeft[i] to pieceRight[i] inclusive.
+     */
+    public int[] pieceLeft = new int[8];
+    public int[] pieceRight = new int[8];
+
+    private int left;
+    private int right;
+    private int top;
+    private int height;
+    // the filled ranges of row y are spans[start + 2 * i] to
+    // spans[start + 2 * i + 1], for i below numSpans[y - top], where start
+    // is (y - top) * rowLength. All rows have the same room, so the array
+    // only grows when the fullest row outgrows it.
+    private int[] spans = new int[0];
+    private int rowLength = 8;
+    private int[] numSpans = new int[0];
+    private int numFullRows;
+
+    /**
+     * Empties the buffer and sets the area it covers.
+     */
+    public void reset(int left, int top, int width, int height) {
+        this.left = left;
+        this.right = left + width - 1;
+        this.top = top;
+        if (numSpans.length < height) {
+            spans = new int[height * rowLength];
+            numSpans = new int[height];
+        }
+        this.height = height;
+        Arrays.fill(numSpans, 0, height, 0);
+        numFullRows = 0;
+    }
+
+    /**
+     * Returns true if every pixel has been filled.
+     */
+    public boolean isFull() {
+        return numFullRows == height;
+    }
+
+    /**
+     * Marks the pixels from xLeft to xRight (inclusive) on row y as filled,
+     * and sets pieceLeft/pieceRight to the parts of that range that weren't
+     * filled before. Returns the number of pieces, which is zero if the span
+     * was completely hidden.
+     */
+    public int insert(int y, int xLeft, int xRight) {
+        int row = y - top;
+        int start = row * rowLength;
+        int count = numSpans[row];
+
+        // first range that ends at or after xLeft - 1 (touching counts)
+        int first = 0;
+        while (first < count && spans[start + 2 * first + 1] < xLeft - 1) {
+            first++;
+        }
+
+        // walk the ranges that overlap or touch [xLeft, xRight], collecting
+        // the gaps between them
+        int numPieces = 0;
+        int x = xLeft;
+        int last = first;
+        while (last < count && spans[start + 2 * last] <= xRight + 1) {
+            int spanLeft = spans[start + 2 * last];
+            if (spanLeft > x) {
+                numPieces = addPiece(numPieces, x, Math.min(spanLeft - 1, xRight));
+            }
+            x = Math.max(x, spans[start + 2 * last + 1] + 1);
+            last++;
+        }
+        if (x <= xRight) {
+            numPieces = addPiece(numPieces, x, xRight);
+        }
+        if (numPieces == 0) {
+            return 0;
+        }
+
+        // replace ranges first..last-1 with one merged range
+        int mergedLeft = xLeft;
+        int mergedRight = xRight;
+        if (last > first) {
+            mergedLeft = Math.min(mergedLeft, spans[start + 2 * first]);
+            mergedRight = Math.max(mergedRight, spans[start + 2 * (last - 1) + 1]);
+        }
+        int newCount = count - (last - first) + 1;
+        if (2 * newCount > rowLength) {
+            growRows();
+            start = row * rowLength;
+        }
+        System.arraycopy(spans, start + 2 * last, spans, start + 2 * (first + 1),
+                2 * (count - last));
+        spans[start + 2 * first] = mergedLeft;
+        spans[start + 2 * first + 1] = mergedRight;
+        numSpans[row] = newCount;
+
+        if (newCount == 1 && mergedLeft <= left && mergedRight >= right) {
+            numFullRows++;
+        }
+        return numPieces;
+    }
+
+    /**
+     * Sets pieceLeft/pieceRight to the parts of row y that haven't been
+     * filled, and returns the number of pieces.
+     */
+    public int getGaps(int y) {
+        int start = (y - top) * rowLength;
+        int count = numSpans[y - top];
+        int numPieces = 0;
+        int x = left;
+        for (int i = 0; i < count; i++) {
+            if (spans[start + 2 * i] > x) {
+                numPieces = addPiece(numPieces, x, spans[start + 2 * i] - 1);
+            }
+            x = spans[start + 2 * i + 1] + 1;
+        }
+        if (x <= right) {
+            numPieces = addPiece(numPieces, x, right);
+        }
+        return numPieces;
+    }
+
+    /**
+     * Doubles the room every row has for ranges.
+     */
+    private void growRows() {
+        int newRowLength = rowLength * 2;
+        int[] newSpans = new int[numSpans.length * newRowLength];
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(spans, row * rowLength, newSpans,
+                    row * newRowLength, 2 * numSpans[row]);
+        }
+        spans = newSpans;
+        rowLength = newRowLength;
+    }
+
+    private int addPiece(int numPieces, int pieceLeft, int pieceRight) {
+        if (numPieces == this.pieceLeft.length) {
+            this.pieceLeft = Arrays.copyOf(this.pieceLeft, numPieces * 2);
+            this.pieceRight = Arrays.copyOf(this.pieceRight, numPieces * 2);
+        }
+        this.pieceLeft[numPieces] = pieceLeft;
+        this.pieceRight[numPieces] = pieceRight;
+        return numPieces + 1;
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The RenderStats class counts what a PolygonRenderer did during one frame.
+ * The counters are reset in startFrame().
+ */
+class RenderStats {
+
+    /**
+     * Polygons that made it to the screen.
+     */
+    public int polygonsDrawn;
+
+    /**
+     * Polygons rejected by a bounding volume test, without being transformed.
+     */
+    public int polygonsCulled;
+
+    /**
+     * Bounding volumes tested against the view frustum.
+     */
+    public int volumesTested;
+
+    /**
+     * Bounding volumes found to be completely outside the view frustum.
+     */
+    public int volumesCulled;
+
+    /**
+     * Polygons rejected because they face away from the camera.
+     */
+    public int polygonsBackFacing;
+
+    /**
+     * Polygons rejected because they were clipped away entirely.
+     */
+    public int polygonsClipped;
+
+    /**
+     * Polygons that were scan converted into at least one scan.
+     */
+    public int polygonsScanConverted;
+
+    /**
+     * Scans filled, after any occlusion clipping.
+     */
+    public int spansFilled;
+
+    /**
+     * Pixels written. Pixels written more than once count every time.
+     */
+    public int pixelsFilled;
+
+    public void reset() {
+        polygonsDrawn = 0;
+        polygonsCulled = 0;
+        volumesTested = 0;
+        volumesCulled = 0;
+        polygonsBackFacing = 0;
+        polygonsClipped = 0;
+        polygonsScanConverted = 0;
+        spansFilled = 0;
+        pixelsFilled = 0;
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The FrameProfiler class records how long each stage of every frame takes,
+ * in nanoseconds. Each stage has a LatencyHistogram covering the whole run
+ * and one covering the last second, which is what the HUD shows. Until the
+ * first second is up, the HUD shows the frames so far. The raw per-frame
+ * times are kept so they can be written to a CSV file on exit.
+ * <p>
+ * Update, present and frame times are recorded by GameCore. The other stages
+ * are only recorded by a PolygonRenderer that has been given a profiler,
+ * since timing every polygon has a cost of its own.
+ */
+class FrameProfiler {
+
+    public static final int UPDATE = 0;
+    public static final int BACK_FACE = 1;
+    public static final int TRANSFORM = 2;
+    public static final int CLIP = 3;
+    public static final int PROJECT = 4;
+    public static final int SCAN = 5;
+    public static final int FILL = 6;
+    public static final int PRESENT = 7;
+
+    /**
+     * The time from the end of one frame to the end of the next.
+     */
+    public static final int FRAME = 8;
+
+    public static final int NUM_STAGES = 9;
+
+    private static final String[] STAGE_NAMES = { "update", "backface",
+        "transform", "clip", "project", "scan", "fill", "present", "total" };
+
+    private static final long INTERVAL_NANOS = 1000000000;
+
+    private long[] frameTimes = new long[NUM_STAGES];
+    private AtomicLong updateTime = new AtomicLong();
+    private LatencyHistogram[] histograms = new LatencyHistogram[NUM_STAGES];
+    private LatencyHistogram[] intervalHistograms = new LatencyHistogram[NUM_STAGES];
+    private long[] p50 = new long[NUM_STAGES];
+    private long[] p99 = new long[NUM_STAGES];
+    private long[] max = new long[NUM_STAGES];
+    private float frameRate;
+    private long lastFrameEnd;
+    private long intervalStart;
+    private int intervalFrames;
+    private boolean intervalEnded;
+    // every stage of every frame since logging was turned on, for
+    // writeCsv(), or null when no CSV file was asked for
+    private long[] log;
+    private int logStart;
+    private int numFrames;
+
+    public FrameProfiler() {
+        for (int i = 0; i < NUM_STAGES; i++) {
+            histograms[i] = new LatencyHistogram();
+            intervalHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Turns keeping the times of every frame for writeCsv() on or off. The
+     * log grows with the number of frames, so it is off by default, and
+     * should only be turned on when a CSV file will be written.
+     */
+    public void setLogging(boolean logging) {
+        if (!logging) {
+            log = null;
+        } else if (log == null) {
+            log = new long[NUM_STAGES * 1024];
+            logStart = numFrames;
+        }
+    }
+
+    /**
+     * Adds time to a stage of the current frame.
+     */
+    public void add(int stage, long nanos) {
+        frameTimes[stage] += nanos;
+    }
+
+    /**
+     * Adds the time since startTime to a stage of the current frame, and
+     * returns the current time, so consecutive stages can be timed with one
+     * call to System.nanoTime() each.
+     */
+    public long time(int stage, long startTime) {
+        long now = System.nanoTime();
+        frameTimes[stage] += now - startTime;
+        return now;
+    }
+
+    /**
+     * Adds update time. Safe to call from a thread other than the one
+     * drawing frames.
+     */
+    public void addUpdate(long nanos) {
+        updateTime.addAndGet(nanos);
+    }
+
+    /**
+     * Records the times of the current frame and starts the next one.
+     */
+    public void endFrame() {
+        long now = System.nanoTime();
+        if (lastFrameEnd == 0) {
+            // no frame time for the first frame
+            lastFrameEnd = now;
+            intervalStart = now;
+            Arrays.fill(frameTimes, 0);
+            updateTime.set(0);
+            return;
+        }
+        frameTimes[UPDATE] += updateTime.getAndSet(0);
+        frameTimes[FRAME] = now - lastFrameEnd;
+        lastFrameEnd = now;
+
+        int logOffset = (numFrames - logStart) * NUM_STAGES;
+        if (log != null && log.length < logOffset + NUM_STAGES) {
+            log = Arrays.copyOf(log, log.length * 2);
+        }
+        for (int i = 0; i < NUM_STAGES; i++) {
+            histograms[i].record(frameTimes[i]);
+            intervalHistograms[i].record(frameTimes[i]);
+            if (log != null) {
+                log[logOffset + i] = frameTimes[i];
+            }
+            frameTimes[i] = 0;
+        }
+        numFrames++;
+        intervalFrames++;
+
+        if (now - intervalStart >= INTERVAL_NANOS) {
+            updateIntervalStats(now);
+            for (int i = 0; i < NUM_STAGES; i++) {
+                intervalHistograms[i].reset();
+            }
+            intervalStart = now;
+            intervalFrames = 0;
+            intervalEnded = true;
+        } else if (!intervalEnded) {
+            // until the first second is up, show the frames so far, so the
+            // HUD draws the same lines from the first frame on
+            updateIntervalStats(now);
+        }
+    }
+
+    private void updateIntervalStats(long now) {
+        for (int i = 0; i < NUM_STAGES; i++) {
+            p50[i] = intervalHistograms[i].getValueAtPercentile(50);
+            p99[i] = intervalHistograms[i].getValueAtPercentile(99);
+            max[i] = intervalHistograms[i].getMax();
+        }
+        frameRate = intervalFrames * 1e9f / (now - intervalStart);
+    }
+
+    /**
+     * Gets the frames per second over the last second.
+     */
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Gets the median time of a stage over the last second.
+     */
+    public long getP50(int stage) {
+        return p50[stage];
+    }
+
+    /**
+     * Gets the 99th percentile time of a stage over the last second.
+     */
+    public long getP99(int stage) {
+        return p99[stage];
+    }
+
+    /**
+     * Gets the longest time of a stage over the last second.
+     */
+    public long getMax(int stage) {
+        return max[stage];
+    }
+
+    /**
+     * Gets the histogram of a stage over the whole run.
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Writes the time of every stage of every frame since logging was turned
+     * on, in nanoseconds, as CSV.
+     */
+    public void writeCsv(String filename) throws IOException {
+        if (log == null) {
+            throw new IllegalStateException("Frames weren't logged");
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+        try {
+            out.print("frame");
+            for (int i = 0; i < NUM_STAGES; i++) {
+                out.print(',');
+                out.print(STAGE_NAMES[i]);
+            }
+            out.println();
+            for (int frame = logStart; frame < numFrames; frame++) {
+                out.print(frame);
+                for (int i = 0; i < NUM_STAGES; i++) {
+                    out.print(',');
+                    out.print(log[(frame - logStart) * NUM_STAGES + i]);
+                }
+                out.println();
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Error writing " + filename);
+        }
+    }
+
+    /**
+     * Prints the p50, p99 and max of every stage over the whole run.
+     */
+    public void printSummary(PrintStream out) {
+        out.println(numFrames + " frames (ms)     p50      p99      max");
+        for (int i = 0; i < NUM_STAGES; i++) {
+            LatencyHistogram h = histograms[i];
+            out.printf("%-12s %8.3f %8.3f %8.3f%n", STAGE_NAMES[i],
+                    h.getValueAtPercentile(50) / 1e6,
+                    h.getValueAtPercentile(99) / 1e6, h.getMax() / 1e6);
+        }
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The AllocationMonitor class counts the bytes the game allocates in each
+ * frame, with the per-thread allocation counters of HotSpot's ThreadMXBean.
+ * Frames after the first WARMUP_FRAMES are steady state, where the update
+ * and draw path shouldn't allocate at all, so the garbage collector never
+ * has to interrupt a frame. On VMs without the counters every frame counts
+ * as zero bytes.
+ */
+class AllocationMonitor {
+
+    // frames before this may allocate while classes load and buffers grow
+    // to fit the view
+    public static final int WARMUP_FRAMES = 100;
+
+    // the only allocation exempted after the warm-up. When a thread asks C2
+    // to compile a method, HotSpot first resolves the string constants of
+    // the method's class on that thread, which creates a few Strings once
+    // per class. Methods get hot at any time, and the Strings can't be told
+    // apart from the game's own, so up to this many bytes in all are put
+    // down to it. With -XX:TieredStopAtLevel=1 there is no C2 and nothing
+    // should allocate.
+    public static final long JIT_ALLOWANCE_BYTES = 8 * 1024;
+
+    private ThreadMXBean threadBean;
+    private long lastBytes = -1;
+    private AtomicLong otherThreadBytes = new AtomicLong();
+    private long frameBytes;
+    private int numFrames;
+    private long steadyStateBytes;
+    private int numAllocatingFrames;
+    private long maxFrameBytes;
+
+    public AllocationMonitor() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof ThreadMXBean) {
+            ThreadMXBean b = (ThreadMXBean) bean;
+            if (b.isThreadAllocatedMemorySupported()) {
+                b.setThreadAllocatedMemoryEnabled(true);
+                threadBean = b;
+            }
+        }
+    }
+
+    /**
+     * Returns true if this VM counts allocated bytes per thread.
+     */
+    public boolean isSupported() {
+        return (threadBean != null);
+    }
+
+    /**
+     * Gets the total number of bytes the current thread has allocated.
+     */
+    public long getThreadAllocatedBytes() {
+        if (threadBean == null) {
+            return 0;
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Adds bytes allocated by a thread other than the one calling
+     * endFrame() to the current frame, such as the update thread. Safe to
+     * call from any thread.
+     */
+    public void add(long bytes) {
+        otherThreadBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Ends the current frame. The frame is charged with everything the
+     * calling thread allocated since the last call, plus what was add()ed.
+     */
+    public void endFrame() {
+        long bytes = getThreadAllocatedBytes();
+        if (lastBytes < 0) {
+            // nothing to compare the first frame to
+            lastBytes = bytes;
+            otherThreadBytes.set(0);
+            return;
+        }
+        frameBytes = bytes - lastBytes + otherThreadBytes.getAndSet(0);
+        lastBytes = bytes;
+        numFrames++;
+        if (numFrames > WARMUP_FRAMES && frameBytes > 0) {
+            steadyStateBytes += frameBytes;
+            numAllocatingFrames++;
+            maxFrameBytes = Math.max(maxFrameBytes, frameBytes);
+        }
+    }
+
+    /**
+     * Gets the bytes allocated in the last frame.
+     */
+    public long getFrameBytes() {
+        return frameBytes;
+    }
+
+    /**
+     * Gets the bytes allocated in all frames after the warm-up.
+     */
+    public long getSteadyStateBytes() {
+        return steadyStateBytes;
+    }
+
+    /**
+     * Gets the number of frames after the warm-up that allocated.
+     */
+    public int getNumAllocatingFrames() {
+        return numAllocatingFrames;
+    }
+
+    /**
+     * Gets the number of frames after the warm-up.
+     */
+    public int getNumSteadyStateFrames() {
+        return Math.max(0, numFrames - WARMUP_FRAMES);
+    }
+
+    /**
+     * Returns true if frames after the warm-up allocated anything beyond
+     * JIT_ALLOWANCE_BYTES.
+     */
+    public boolean isAllocating() {
+        return (steadyStateBytes > JIT_ALLOWANCE_BYTES);
+    }
+
+    /**
+     * Gets the most bytes allocated in one frame after the warm-up.
+     */
+    public long getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    public void printSummary(PrintStream out) {
+        if (!isSupported()) {
+            out.println("allocation: not counted by this VM");
+            return;
+        }
+        out.println("allocation: " + steadyStateBytes + " bytes in "
+                + numAllocatingFrames + " of "
+                + getNumSteadyStateFrames()
+                + " steady-state frames, max " + maxFrameBytes
+                + " bytes/frame, " + JIT_ALLOWANCE_BYTES + " allowed for the JIT");
+    }
+}
+//-----------------------------------------------------------------
+/**
+ * The TextLine class builds a line of text in a reusable char array and
+ * draws it with Graphics.drawChars(), so text that changes every frame, like
+ * the frame rate, is drawn without creating Strings.
+ */
+class TextLine {
+
+    private char[] chars = new char[64];
+    private int length;
+
+    /**
+     * Empties this line.
+     */
+    public TextLine clear() {
+        length = 0;
+        return this;
+    }
+
+    public TextLine append(char c) {
+        ensureCapacity(length + 1);
+        chars[length++] = c;
+        return this;
+    }
+
+    public TextLine append(String s) {
+        int n = s.length();
+        ensureCapacity(length + n);
+        s.getChars(0, n, chars, length);
+        length += n;
+        return this;
+    }
+
+    public TextLine append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int numDigits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            numDigits++;
+        }
+        ensureCapacity(length + numDigits);
+        for (int i = length + numDigits - 1; i >= length; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += numDigits;
+        return this;
+    }
+
+    /**
+     * Appends a number of hundredths with two decimal places, such as 1.05
+     * for 105.
+     */
+    public TextLine appendHundredths(long hundredths) {
+        if (hundredths < 0) {
+            append('-');
+            hundredths = -hundredths;
+        }
+        long fraction = hundredths % 100;
+        return append(hundredths / 100).append('.')
+                .append((char) ('0' + fraction / 10))
+                .append((char) ('0' + fraction % 10));
+    }
+
+    /**
+     * Draws this line with its baseline at (x, y), then empties it.
+     */
+    public void draw(Graphics g, int x, int y) {
+        g.drawChars(chars, 0, length, x, y);
+        length = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (chars.length < capacity) {
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+        }
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The LatencyHistogram class counts nanosecond times in log-linear buckets,
+ * like HdrHistogram: each power of two is split into SUB_BUCKETS / 2
+ * buckets, so percentiles are accurate to within 1/64 (about 1.6%) of the
+ * value no matter how large it is. Recording is constant time and doesn't
+ * allocate.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    // values up to 2^40 ns (about 18 minutes)
+    private static final int MAX_SHIFT = 40 - SUB_BUCKET_BITS;
+
+    private long[] counts = new long[(MAX_SHIFT + 2) * HALF_SUB_BUCKETS];
+    private long totalCount;
+    private long max;
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[getIndex(value)]++;
+        totalCount++;
+        max = Math.max(max, value);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        max = 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Gets the value that the specified percent of recorded values are less
+     * than or equal to, rounded up to the top of its bucket.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1,
+                (long) Math.ceil(percentile / 100 * totalCount));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= countAtPercentile) {
+                return Math.min(getHighestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // keep the top SUB_BUCKET_BITS bits, starting at the highest one bit
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        shift = Math.min(shift, MAX_SHIFT);
+        long top = Math.min(value >>> shift, SUB_BUCKETS - 1);
+        return (int) (shift * HALF_SUB_BUCKETS + top);
+    }
+
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long top = index - shift * HALF_SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The ResolutionController class picks the scale of the resolution frames are
+ * drawn at, to keep the time to draw a frame within a budget. It lowers the
+ * scale a step after a few frames in a row go over the budget, and raises it
+ * a step only after many frames in a row would still fit in the budget at
+ * the higher scale, so the resolution doesn't flicker between two steps and
+ * drops only while frames are over budget.
+ */
+class ResolutionController {
+
+    /**
+     * How much each step changes the scale of the width and height.
+     */
+    public static final float STEP = 0.125f;
+
+    // frames in a row over budget before lowering the scale
+    private static final int FRAMES_TO_LOWER = 5;
+
+    // frames in a row with room to spare before raising the scale
+    private static final int FRAMES_TO_RAISE = 60;
+
+    // raise only if the frame is predicted to take at most this much of the
+    // budget at the higher scale
+    private static final float RAISE_HEADROOM = 0.85f;
+
+    private long budgetNanos;
+
+    private float minScale;
+
+    private float scale = 1;
+
+    private int framesOver;
+
+    private int framesUnder;
+
+    /**
+     * Creates a ResolutionController for the specified budget per frame,
+     * that never scales below minScale.
+     */
+    public ResolutionController(long budgetNanos, float minScale) {
+        this.budgetNanos = budgetNanos;
+        this.minScale = Math.max(STEP, Math.min(1, minScale));
+    }
+
+    /**
+     * Gets the scale of the width and height of the view, from minScale to 1.
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    public long getBudget() {
+        return budgetNanos;
+    }
+
+    /**
+     * Tells the controller how long the last frame took to draw. Returns
+     * true if the scale changed.
+     */
+    public boolean frameDrawn(long nanos) {
+        if (nanos > budgetNanos) {
+            framesUnder = 0;
+            framesOver++;
+            if (framesOver >= FRAMES_TO_LOWER && scale > minScale) {
+                scale = Math.max(minScale, scale - STEP);
+                framesOver = 0;
+                return true;
+            }
+            return false;
+        }
+
+        framesOver = 0;
+        if (scale >= 1) {
+            return false;
+        }
+        // predict the time at the next step up, assuming it follows the
+        // number of pixels. Not all of it does, so this errs on the safe side.
+        float higher = Math.min(1, scale + STEP);
+        float ratio = (higher * higher) / (scale * scale);
+        if (nanos * ratio <= budgetNanos * RAISE_HEADROOM) {
+            framesUnder++;
+            if (framesUnder >= FRAMES_TO_RAISE) {
+                scale = higher;
+                framesUnder = 0;
+                return true;
+            }
+        } else {
+            framesUnder = 0;
+        }
+        return false;
+    }
+}
+//-----------------------------------------------------------------
+
+class ScanConverter {
+
+    private static final int SCALE_BITS = 16;
+    private static final int SCALE = 1 << SCALE_BITS;
+    private static final int SCALE_MASK = SCALE - 1;
+
+    /**
+     * The scan of row y goes from left[y] to right[y] inclusive, and is
+     * empty if left[y] > right[y]. Rows without a scan are left at
+     * Integer.MAX_VALUE and Integer.MIN_VALUE. The arrays are replaced when
+     * the view window grows.
+     */
+    public int[] left = new int[0];
+    public int[] right = new int[0];
+
+    protected ViewWindow view;
+    protected int top;
+    protected int bottom;
+    protected int bandTop = Integer.MIN_VALUE;
+    protected int bandBottom = Integer.MAX_VALUE;
+    // the view window bounds, set by startConversion()
+    private int minX;
+    private int maxX;
+    private int minY;
+    private int maxY;
+
+    public ScanConverter(ViewWindow view) {
+        this.view = view;
+    }
+
+    public int getTopBoundary() {
+        return top;
+    }
+
+    public int getBottomBoundary() {
+        return bottom;
+    }
+
+    /**
+     * Returns true if row y has a scan.
+     */
+    public boolean isValid(int y) {
+        return (left[y] <= right[y]);
+    }
+
+    /**
+     * Restricts scan conversion to the rows from top to bottom (inclusive).
+     * Edges are still walked exactly as they are for the whole view window,
+     * so the scans in the band are identical to the scans produced without a
+     * band.
+     */
+    public void setBand(int top, int bottom) {
+        bandTop = top;
+        bandBottom = bottom;
+    }
+
+    /**
+     * Sets the boundary x on every row from startY to endY that lies within
+     * the current band.
+     */
+    private void setBoundary(int startY, int endY, int x) {
+        startY = Math.max(startY, bandTop);
+        endY = Math.min(endY, bandBottom);
+        for (int y = startY; y <= endY; y++) {
+            setBoundary(y, x);
+        }
+    }
+
+    private void setBoundary(int y, int x) {
+        if (x < left[y]) {
+            left[y] = x;
+        }
+        if (x - 1 > right[y]) {
+            right[y] = x - 1;
+        }
+    }
+
+    /**
+     * Makes sure there is a scan for every row of the view window. The
+     * arrays only ever grow, so resizing the view doesn't create objects
+     * once it has been at its largest.
+     */
+    protected void ensureCapacity() {
+        int height = view.getTopOffset() + view.getHeight();
+        if (left.length < height) {
+            int oldHeight = left.length;
+            left = Arrays.copyOf(left, height);
+            right = Arrays.copyOf(right, height);
+            Arrays.fill(left, oldHeight, height, Integer.MAX_VALUE);
+            Arrays.fill(right, oldHeight, height, Integer.MIN_VALUE);
+        }
+    }
+
+    private void clearCurrentScan() {
+        for (int i = top; i <= bottom; i++) {
+            left[i] = Integer.MAX_VALUE;
+            right[i] = Integer.MIN_VALUE;
+        }
+        top = Integer.MAX_VALUE;
+        bottom = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Gets ready to scan convert polygons in the current view window, and
+     * clears the scans of the last polygon.
+     */
+    private void startConversion() {
+        ensureCapacity();
+        clearCurrentScan();
+        minX = view.getLeftOffset();
+        maxX = view.getLeftOffset() + view.getWidth() - 1;
+        minY = view.getTopOffset();
+        maxY = view.getTopOffset() + view.getHeight() - 1;
+    }
+
+    public boolean convert(Polygon3D polygon) {
+        startConversion();
+        scanEdges(polygon);
+
+        // check if visible (any valid scans)
+        for (int i = top; i <= bottom; i++) {
+            if (left[i] <= right[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scan converts polygons[start] up to, but not including, polygons[end]
+     * and adds their scans to the specified list in order, each tagged with
+     * the index of its polygon. Unlike convert(Polygon3D), the scans are
+     * cleared as they are added, so afterwards this ScanConverter has no
+     * scans. Returns the number of polygons that had any.
+     */
+    public int convert(Polygon3D[] polygons, int start, int end, SpanList spans) {
+        startConversion();
+        int numVisible = 0;
+        for (int i = start; i < end; i++) {
+            scanEdges(polygons[i]);
+            int numSpans = spans.getNumSpans();
+            for (int y = top; y <= bottom; y++) {
+                if (left[y] <= right[y]) {
+                    spans.add(y, left[y], right[y], i);
+                }
+                left[y] = Integer.MAX_VALUE;
+                right[y] = Integer.MIN_VALUE;
+            }
+            if (spans.getNumSpans() > numSpans) {
+                numVisible++;
+            }
+            top = Integer.MAX_VALUE;
+            bottom = Integer.MIN_VALUE;
+        }
+        return numVisible;
+    }
+
+    /**
+     * Walks the edges of the polygon, setting the scan boundaries and top and
+     * bottom. The rows must be clear.
+     */
+    private void scanEdges(Polygon3D polygon) {
+        int numVertices = polygon.getNumVertices();
+        if (bandTop > minY || bandBottom < maxY) {
+            // skip polygons above or below the band without walking edges
+            float polyTop = Float.MAX_VALUE;
+            float polyBottom = -Float.MAX_VALUE;
+            for (int i = 0; i < numVertices; i++) {
+                float y = polygon.getVertex(i).y;
+                polyTop = Math.min(polyTop, y);
+                polyBottom = Math.max(polyBottom, y);
+            }
+            if (MoreMath.ceil(polyTop) > bandBottom
+                    || MoreMath.ceil(polyBottom) - 1 < bandTop) {
+                return;
+            }
+        }
+        for (int i = 0; i < numVertices; i++) {
+            Vector3D v1 = polygon.getVertex(i);
+            Vector3D v2;
+            if (i == numVertices - 1) {
+                v2 = polygon.getVertex(0);
+            } else {
+                v2 = polygon.getVertex(i + 1);
+            }
+
+            // ensure v1.y < v2.y
+            if (v1.y > v2.y) {
+                Vector3D temp = v1;
+                v1 = v2;
+                v2 = temp;
+            }
+            float dy = v2.y - v1.y;
+
+            // ignore horizontal lines
+            if (dy == 0) {
+                continue;
+            }
+
+            int startY = Math.max(MoreMath.ceil(v1.y), minY);
+            int endY = Math.min(MoreMath.ceil(v2.y) - 1, maxY);
+            top = Math.min(top, Math.max(startY, bandTop));
+            bottom = Math.max(bottom, Math.min(endY, bandBottom));
+            float dx = v2.x - v1.x;
+
+            // special case: vertical line
+            if (dx == 0) {
+                int x = MoreMath.ceil(v1.x);
+                // ensure x within view bounds
+                x = Math.min(maxX + 1, Math.max(x, minX));
+                setBoundary(startY, endY, x);
+            } else {
+                // scan-convert this edge (line equation)
+                float gradient = dx / dy;
+
+                // (faster version)
+                // trim start of line
+                float startX = v1.x + (startY - v1.y) * gradient;
+                if (startX < minX) {
+                    int yInt = (int) (v1.y + (minX - v1.x) / gradient);
+                    yInt = Math.min(yInt, endY);
+                    setBoundary(startY, yInt, minX);
+                    startY = Math.max(startY, yInt + 1);
+                } else if (startX > maxX) {
+                    int yInt = (int) (v1.y + (maxX - v1.x) / gradient);
+                    yInt = Math.min(yInt, endY);
+                    setBoundary(startY, yInt, maxX + 1);
+                    startY = Math.max(startY, yInt + 1);
+                }
+
+                if (startY > endY) {
+                    continue;
+                }
+
+                // trim back of line
+                float endX = v1.x + (endY - v1.y) * gradient;
+                if (endX < minX) {
+                    int yInt = MoreMath.ceil(v1.y + (minX - v1.x) / gradient);
+                    yInt = Math.max(yInt, startY);
+                    setBoundary(yInt, endY, minX);
+                    endY = Math.min(endY, yInt - 1);
+                } else if (endX > maxX) {
+                    int yInt = MoreMath.ceil(v1.y + (maxX - v1.x) / gradient);
+                    yInt = Math.max(yInt, startY);
+                    setBoundary(yInt, endY, maxX + 1);
+                    endY = Math.min(endY, yInt - 1);
+                }
+
+                if (startY > endY) {
+                    continue;
+                }
+
+                // line equation using integers
+                int xScaled = (int) (SCALE * v1.x + SCALE * (startY - v1.y)
+                        * dx / dy)
+                        + SCALE_MASK;
+                int dxScaled = (int) (dx * SCALE / dy);
+
+                // skip to the band (same result as stepping row by row)
+                int firstY = Math.max(startY, bandTop);
+                int lastY = Math.min(endY, bandBottom);
+                xScaled += (firstY - startY) * dxScaled;
+
+                for (int y = firstY; y <= lastY; y++) {
+                    setBoundary(y, xScaled >> SCALE_BITS);
+                    xScaled += dxScaled;
+                }
+            }
+        }
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The SpanList class is a list of horizontal spans packed into an int array,
+ * SPAN_SIZE ints per span: the row, the left and right x (inclusive), and an
+ * id such as the index of the polygon the span belongs to. The array only
+ * ever grows, so a list that is cleared and refilled every frame doesn't
+ * create objects.
+ */
+class SpanList {
+
+    public static final int SPAN_SIZE = 4;
+
+    /**
+     * The spans, from data[0] to data[getLength() - 1]. The array is
+     * replaced when the list grows.
+     */
+    public int[] data = new int[SPAN_SIZE * 256];
+    private int length;
+
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * Makes room for the specified number of spans, so adding up to that
+     * many doesn't grow the array.
+     */
+    public void ensureCapacity(int numSpans) {
+        if (data.length < numSpans * SPAN_SIZE) {
+            data = Arrays.copyOf(data, numSpans * SPAN_SIZE);
+        }
+    }
+
+    public void add(int y, int left, int right, int id) {
+        if (length == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[length] = y;
+        data[length + 1] = left;
+        data[length + 2] = right;
+        data[length + 3] = id;
+        length += SPAN_SIZE;
+    }
+
+    /**
+     * Gets the number of ints of data in use.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getNumSpans() {
+        return length / SPAN_SIZE;
+    }
+}
+//-----------------------------------------------------------------
+
+class MoreMath {
+
+    /**
+     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
+     * and 0 otherwise.
+     */
+    public static int sign(short v) {
+        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    }
+
+    /**
+     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
+     * and 0 otherwise.
+     */
+    public static int sign(int v) {
+        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    }
+
+    /**
+     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
+     * and 0 otherwise.
+     */
+    public static int sign(long v) {
+        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    }
+
+    /**
+     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
+     * and 0 otherwise.
+     */
+    public static int sign(float v) {
+        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    }
+
+    /**
+     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
+     * and 0 otherwise.
+     */
+    public static int sign(double v) {
+        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    }
+
+    /**
+     * Faster ceil function to convert a float to an int. Contrary to the
+     * java.lang.Math ceil function, this function takes a float as an argument,
+     * returns an int instead of a double, and does not consider special cases.
+     */
+    public static int ceil(float f) {
+        if (f > 0) {
+            return (int) f + 1;
+        } else {
+            return (int) f;
+        }
+    }
+
+    /**
+     * Faster floor function to convert a float to an int. Contrary to the
+     * java.lang.Math floor function, this function takes a float as an
+     * argument, returns an int instead of a double, and does not consider
+     * special cases.
+     */
+    public static int floor(float f) {
+        if (f >= 0) {
+            return (int) f;
+        } else {
+            return (int) f - 1;
+        }
+    }
+
+    /**
+     * Returns true if the specified number is a power of 2.
+     */
+    public static boolean isPowerOfTwo(int n) {
+        return ((n & (n - 1)) == 0);
+    }
+
+    /**
+     * Gets the number of "on" bits in an integer.
+     */
+    public static int getBitCount(int n) {
+        int count = 0;
+        while (n > 0) {
+            count += (n & 1);
+            n >>= 1;
+        }
+        return count;
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The GameAction class is an abstract to a user-initiated action, like jumping
+ * or moving. GameActions can be mapped to keys or the mouse with the
+ * InputManager.
+ */
+class GameAction {
+
+    /**
+     * Normal behavior. The isPressed() method returns true as long as the key
+     * is held down.
+     */
+    public static final int NORMAL = 0;
+
+    /**
+     * Initial press behavior. The isPressed() method returns true only after
+     * the key is first pressed, and not again until the key is released and
+     * pressed again.
+     */
+    public static final int DETECT_INITAL_PRESS_ONLY = 1;
+
+    private static final int STATE_RELEASED = 0;
+
+    private static final int STATE_PRESSED = 1;
+
+    private static final int STATE_WAITING_FOR_RELEASE = 2;
+
+    private String name;
+
+    private int behavior;
+
+    // the state in the high 32 bits and the amount in the low 32 bits, so
+    // both change together in one compare-and-set. The AWT event thread
+    // presses and releases while the game loop reads, without locking.
+    private final AtomicLong stateAndAmount = new AtomicLong();
+
+    /**
+     * Create a new GameAction with the NORMAL behavior.
+     */
+    public GameAction(String name) {
+        this(name, NORMAL);
+    }
+
+    /**
+     * Create a new GameAction with the specified behavior.
+     */
+    public GameAction(String name, int behavior) {
+        this.name = name;
+        this.behavior = behavior;
+        reset();
+    }
+
+    /**
+     * Gets the name of this GameAction.
+     */
+    public String getName() {
+        return name;
+    }
+
+    private static long pack(int state, int amount) {
+        return ((long) state << 32) | (amount & 0xffffffffL);
+    }
+
+    private static int getState(long stateAndAmount) {
+        return (int) (stateAndAmount >>> 32);
+    }
+
+    private static int getAmount(long stateAndAmount) {
+        return (int) stateAndAmount;
+    }
+
+    /**
+     * Resets this GameAction so that it appears like it hasn't been pressed.
+     */
+    public void reset() {
+        stateAndAmount.set(pack(STATE_RELEASED, 0));
+    }
+
+    /**
+     * Taps this GameAction. Same as calling press() followed by release().
+     */
+    public void tap() {
+        tap(1);
+    }
+
+    /**
+     * Same as calling press(amount) followed by release(), but as one
+     * change, so getAmount() never sees the amount while it is still
+     * pressed.
+     */
+    public void tap(int amount) {
+        while (true) {
+            long current = stateAndAmount.get();
+            int newAmount = getAmount(current);
+            if (getState(current) != STATE_WAITING_FOR_RELEASE) {
+                newAmount += amount;
+            }
+            if (stateAndAmount.compareAndSet(current,
+                    pack(STATE_RELEASED, newAmount))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Signals that the key was pressed.
+     */
+    public void press() {
+        press(1);
+    }
+
+    /**
+     * Signals that the key was pressed a specified number of times, or that the
+     * mouse move a spcified distance.
+     */
+    public void press(int amount) {
+        while (true) {
+            long current = stateAndAmount.get();
+            if (getState(current) == STATE_WAITING_FOR_RELEASE) {
+                return;
+            }
+            if (stateAndAmount.compareAndSet(current,
+                    pack(STATE_PRESSED, getAmount(current) + amount))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Signals that the key was released
+     */
+    public void release() {
+        while (true) {
+            long current = stateAndAmount.get();
+            if (stateAndAmount.compareAndSet(current,
+                    pack(STATE_RELEASED, getAmount(current)))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the key was pressed or not since last checked.
+     */
+    public boolean isPressed() {
+        return (getAmount() != 0);
+    }
+
+    /**
+     * For keys, this is the number of times the key was pressed since it was
+     * last checked. For mouse movement, this is the distance moved.
+     */
+    public int getAmount() {
+        while (true) {
+            long current = stateAndAmount.get();
+            int amount = getAmount(current);
+            if (amount == 0) {
+                return 0;
+            }
+            long next;
+            if (getState(current) == STATE_RELEASED) {
+                next = pack(STATE_RELEASED, 0);
+            } else if (behavior == DETECT_INITAL_PRESS_ONLY) {
+                next = pack(STATE_WAITING_FOR_RELEASE, 0);
+            } else {
+                // held down: keep reporting the amount
+                return amount;
+            }
+            if (stateAndAmount.compareAndSet(current, next)) {
+                return amount;
+            }
+        }
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The InputSnapshot class holds the input of one frame: the amount of every
+ * GameAction, read once when the snapshot is taken. The game loop reads the
+ * snapshot as often as it likes, so every check in a frame sees the same
+ * input, and the GameActions are only touched once per frame.
+ */
+class InputSnapshot {
+
+    private GameAction[] actions = new GameAction[16];
+
+    private int[] amounts = new int[16];
+
+    private int numActions;
+
+    /**
+     * Adds a GameAction to the snapshot, if it isn't there already.
+     */
+    public void add(GameAction action) {
+        if (indexOf(action) != -1) {
+            return;
+        }
+        if (numActions == actions.length) {
+            actions = Arrays.copyOf(actions, numActions * 2);
+            amounts = Arrays.copyOf(amounts, numActions * 2);
+        }
+        actions[numActions++] = action;
+    }
+
+    /**
+     * Reads the amount of every GameAction, as GameAction.getAmount() does.
+     */
+    public void capture() {
+        for (int i = 0; i < numActions; i++) {
+            amounts[i] = actions[i].getAmount();
+        }
+    }
+
+    /**
+     * Gets the amount of the specified GameAction when the snapshot was
+     * taken, or 0 if it isn't in the snapshot.
+     */
+    public int getAmount(GameAction action) {
+        int index = indexOf(action);
+        return (index != -1) ? amounts[index] : 0;
+    }
+
+    /**
+     * Returns whether the specified GameAction was pressed when the snapshot
+     * was taken.
+     */
+    public boolean isPressed(GameAction action) {
+        return (getAmount(action) != 0);
+    }
+
+    public int getNumActions() {
+        return numActions;
+    }
+
+    public GameAction getAction(int index) {
+        return actions[index];
+    }
+
+    /**
+     * Gets the amount of the GameAction at the specified index.
+     */
+    public int getAmount(int index) {
+        return amounts[index];
+    }
+
+    /**
+     * Sets the amount of the GameAction at the specified index, in place of
+     * the one captured, for replaying recorded input.
+     */
+    public void setAmount(int index, int amount) {
+        amounts[index] = amount;
+    }
+
+    /**
+     * Gets the index of the GameAction with the specified name, or -1 if
+     * there is none.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < numActions; i++) {
+            if (actions[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(GameAction action) {
+        // there are only a few actions, so a search is as fast as a map
+        for (int i = 0; i < numActions; i++) {
+            if (actions[i] == action) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The InputRecorder class writes the input of every update to a compact
+ * binary log, which an InputPlayer can feed back to the game later, so two
+ * runs can be compared on exactly the same camera path.
+ * <p>
+ * The log starts with a header: the magic number "H3DI", the version, the
+ * number of GameActions and their names. Then each update is the elapsed
+ * time, a mask of the GameActions whose amount isn't 0, and those amounts,
+ * all as variable-length integers. An update with no input takes two bytes.
+ */
+class InputRecorder {
+
+    public static final int MAGIC = 0x48334449; // "H3DI"
+
+    public static final int VERSION = 1;
+
+    /**
+     * The most GameActions a log can hold, one per bit of the mask.
+     */
+    public static final int MAX_ACTIONS = 64;
+
+    private DataOutputStream out;
+
+    private int numActions;
+
+    private int numFrames;
+
+    /**
+     * Creates a log file for snapshots of the GameActions in the specified
+     * snapshot. Actions added to the snapshot later aren't recorded.
+     */
+    public InputRecorder(File file, InputSnapshot snapshot) throws IOException {
+        numActions = Math.min(snapshot.getNumActions(), MAX_ACTIONS);
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numActions);
+        for (int i = 0; i < numActions; i++) {
+            out.writeUTF(snapshot.getAction(i).getName());
+        }
+    }
+
+    /**
+     * Records one update: the elapsed time passed to it and its input.
+     */
+    public void record(long elapsedTime, InputSnapshot snapshot) throws IOException {
+        long mask = 0;
+        for (int i = 0; i < numActions; i++) {
+            if (snapshot.getAmount(i) != 0) {
+                mask |= 1L << i;
+            }
+        }
+        writeVarLong(elapsedTime);
+        writeVarLong(mask);
+        for (int i = 0; i < numActions; i++) {
+            int amount = snapshot.getAmount(i);
+            if (amount != 0) {
+                // zigzag, so small negative amounts stay small
+                writeVarLong(((amount << 1) ^ (amount >> 31)) & 0xffffffffL);
+            }
+        }
+        numFrames++;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The InputPlayer class reads a log written by an InputRecorder and plays it
+ * back one update at a time, setting the amounts of an InputSnapshot in place
+ * of real input. GameActions are matched by name, and ones the log doesn't
+ * have are never pressed. The whole log is read into memory and checked
+ * first, so playing it back doesn't touch the disk and can't fail. A log
+ * that ends in the middle of an update, like one from a game that was
+ * killed while recording, is played up to the last whole update.
+ */
+class InputPlayer {
+
+    private byte[] log;
+
+    private int position;
+
+    private int headerLength;
+
+    // the end of the last whole update
+    private int end;
+
+    // the index in the snapshot of each action in the log, or -1
+    private int[] snapshotIndex;
+
+    private InputSnapshot snapshot;
+
+    /**
+     * Reads the specified log, to play back into the specified snapshot.
+     */
+    public InputPlayer(File file, InputSnapshot snapshot) throws IOException {
+        this.snapshot = snapshot;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            log = new byte[(int) in.length()];
+            in.readFully(log);
+        } finally {
+            in.close();
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(log);
+        DataInputStream header = new DataInputStream(bytes);
+        if (header.readInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not an input log: " + file);
+        }
+        int version = header.readInt();
+        if (version != InputRecorder.VERSION) {
+            throw new IOException("Unsupported input log version " + version);
+        }
+        int numActions = header.readInt();
+        if (numActions < 0 || numActions > InputRecorder.MAX_ACTIONS) {
+            throw new IOException("Bad number of actions: " + numActions);
+        }
+        snapshotIndex = new int[numActions];
+        for (int i = 0; i < numActions; i++) {
+            snapshotIndex[i] = snapshot.indexOf(header.readUTF());
+        }
+        headerLength = log.length - bytes.available();
+
+        position = headerLength;
+        end = headerLength;
+        while (position < log.length) {
+            readVarLong();
+            long mask = readVarLong();
+            if (position <= log.length && numActions < 64
+                    && (mask >>> numActions) != 0) {
+                throw new IOException("Bad action mask at byte " + end
+                        + " of " + file);
+            }
+            for (int i = Long.bitCount(mask); i > 0; i--) {
+                readVarLong();
+            }
+            if (position > log.length) {
+                // the log was cut off in this update
+                break;
+            }
+            end = position;
+        }
+        position = headerLength;
+    }
+
+    /**
+     * Returns true if there are updates left to play.
+     */
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    /**
+     * Sets the snapshot to the input of the next update, and returns the
+     * elapsed time of that update. After the last update, the snapshot is
+     * set to no input and 0 is returned.
+     */
+    public long next() {
+        for (int i = 0; i < snapshot.getNumActions(); i++) {
+            snapshot.setAmount(i, 0);
+        }
+        if (!hasNext()) {
+            return 0;
+        }
+        long elapsedTime = readVarLong();
+        long mask = readVarLong();
+        for (int i = 0; mask != 0; i++, mask >>>= 1) {
+            if ((mask & 1) != 0) {
+                int zigzag = (int) readVarLong();
+                int amount = (zigzag >>> 1) ^ -(zigzag & 1);
+                if (snapshotIndex[i] != -1) {
+                    snapshot.setAmount(snapshotIndex[i], amount);
+                }
+            }
+        }
+        return elapsedTime;
+    }
+
+    /**
+     * Starts playing from the first update again.
+     */
+    public void rewind() {
+        position = headerLength;
+    }
+
+    /**
+     * Reads a variable-length integer. If the log ends before the integer
+     * does, position is left past the end of the log.
+     */
+    private long readVarLong() {
+        long value = 0;
+        for (int shift = 0; position < log.length; shift += 7) {
+            int b = log[position++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        position = log.length + 1;
+        return value;
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The Vector3D class implements a 3D vector with the floating-point values x,
+ * y, and z. Vectors can be thought of either as a (x,y,z) point or as a vector
+ * from (0,0,0) to (x,y,z).
+ */
+class Vector3D implements Transformable {
+
+    public float x;
+
+    public float y;
+
+    public float z;
+
+    /**
+     * Creates a new Vector3D at (0,0,0).
+     */
+    public Vector3D() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * Creates a new Vector3D with the same values as the specified Vector3D.
+     */
+    public Vector3D(Vector3D v) {
+        this(v.x, v.y, v.z);
+    }
+
+    /**
+     * Creates a new Vector3D with the specified (x, y, z) values.
+     */
+    public Vector3D(float x, float y, float z) {
+        setTo(x, y, z);
+    }
+
+    /**
+     * Checks if this Vector3D is equal to the specified Object. They are equal
+     * only if the specified Object is a Vector3D and the two Vector3D's x, y,
+     * and z coordinates are equal.
+     */
+    public boolean equals(Object obj) {
+        Vector3D v = (Vector3D) obj;
+        return (v.x == x && v.y == y && v.z == z);
+    }
+
+    /**
+     * Returns a hash code consistent with equals(). Adding 0 turns -0 into 0,
+     * which equals() treats as the same value.
+     */
+    public int hashCode() {
+        int hash = Float.floatToIntBits(x + 0f);
+        hash = 31 * hash + Float.floatToIntBits(y + 0f);
+        return 31 * hash + Float.floatToIntBits(z + 0f);
+    }
+
+    /**
+     * Checks if this Vector3D is equal to the specified x, y, and z
+     * coordinates.
+     */
+    public boolean equals(float x, float y, float z) {
+        return (this.x == x && this.y == y && this.z == z);
+    }
+
+    /**
+     * Sets the vector to the same values as the specified Vector3D.
+     */
+    public void setTo(Vector3D v) {
+        setTo(v.x, v.y, v.z);
+    }
+
+    /**
+     * Sets this vector to the specified (x, y, z) values.
+     */
+    public void setTo(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Adds the specified (x, y, z) values to this vector.
+     */
+    public void add(float x, float y, float z) {
+        this.x += x;
+        this.y += y;
+        this.z += z;
+    }
+
+    /**
+     * Subtracts the specified (x, y, z) values to this vector.
+     */
+    public void subtract(float x, float y, float z) {
+        add(-x, -y, -z);
+    }
+
+    /**
+     * Adds the specified vector to this vector.
+     */
+    public void add(Vector3D v) {
+        add(v.x, v.y, v.z);
+    }
+
+    /**
+     * Subtracts the specified vector from this vector.
+     */
+    public void subtract(Vector3D v) {
+        add(-v.x, -v.y, -v.z);
+    }
+
+    /**
+     * Multiplies this vector by the specified value. The new length of this
+     * vector will be length()*s.
+     */
+    public void multiply(float s) {
+        x *= s;
+        y *= s;
+        z *= s;
+    }
+
+    /**
+     * Divides this vector by the specified value. The new length of this vector
+     * will be length()/s.
+     */
+    public void divide(float s) {
+        x /= s;
+        y /= s;
+        z /= s;
+    }
+
+    /**
+     * Returns the length of this vector as a float.
+     */
+    public float length() {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Converts this Vector3D to a unit vector, or in other words, a vector of
+     * length 1. Same as calling v.divide(v.length()).
+     */
+    public void normalize() {
+        divide(length());
+    }
+
+    /**
+     * Converts this Vector3D to a String representation.
+     */
+    public String toString() {
+        return "(" + x + ", " + y + ", " + z + ")";
+    }
+
+    /**
+     * Rotate this vector around the x axis the specified amount. The specified
+     * angle is in radians. Use Math.toRadians() to convert from degrees to
+     * radians.
+     */
+    public void rotateX(float angle) {
+        rotateX((float) Math.cos(angle), (float) Math.sin(angle));
+    }
+
+    /**
+     * Rotate this vector around the y axis the specified amount. The specified
+     * angle is in radians. Use Math.toRadians() to convert from degrees to
+     * radians.
+     */
+    public void rotateY(float angle) {
+        rotateY((float) Math.cos(angle), (float) Math.sin(angle));
+    }
+
+    /**
+     * Rotate this vector around the z axis the specified amount. The specified
+     * angle is in radians. Use Math.toRadians() to convert from degrees to
+     * radians.
+     */
+    public void rotateZ(float angle) {
+        rotateZ((float) Math.cos(angle), (float) Math.sin(angle));
+    }
+
+    /**
+     * Rotate this vector around the x axis the specified amount, using
+     * pre-computed cosine and sine values of the angle to rotate.
+     */
+    public void rotateX(float cosAngle, float sinAngle) {
+        float newY = y * cosAngle - z * sinAngle;
+        float newZ = y * sinAngle + z * cosAngle;
+        y = newY;
+        z = newZ;
+    }
+
+    /**
+     * Rotate this vector around the y axis the specified amount, using
+     * pre-computed cosine and sine values of the angle to rotate.
+     */
+    public void rotateY(float cosAngle, float sinAngle) {
+        float newX = z * sinAngle + x * cosAngle;
+        float newZ = z * cosAngle - x * sinAngle;
+        x = newX;
+        z = newZ;
+    }
+
+    /**
+     * Rotate this vector around the y axis the specified amount, using
+     * pre-computed cosine and sine values of the angle to rotate.
+     */
+    public void rotateZ(float cosAngle, float sinAngle) {
+        float newX = x * cosAngle - y * sinAngle;
+        float newY = x * sinAngle + y * cosAngle;
+        x = newX;
+        y = newY;
+    }
+
+    /**
+     * Adds the specified transform to this vector. This vector is first
+     * rotated, then translated.
+     */
+    public void add(Transform3D xform) {
+        xform.transform(this);
+    }
+
+    /**
+     * Subtracts the specified transform to this vector. This vector translated,
+     * then rotated.
+     */
+    public void subtract(Transform3D xform) {
+        xform.inverseTransform(this);
+    }
+
+    /**
+     * Rotates this vector with the angle of the specified transform.
+     */
+    public void addRotation(Transform3D xform) {
+        xform.rotate(this);
+    }
+
+    /**
+     * Rotates this vector with the opposite angle of the specified transform.
+     */
+    public void subtractRotation(Transform3D xform) {
+        xform.inverseRotate(this);
+    }
+
+    /**
+     * Returns the dot product of this vector and the specified vector.
+     */
+    public float getDotProduct(Vector3D v) {
+        return x * v.x + y * v.y + z * v.z;
+    }
+
+    /**
+     * Sets this vector to the cross product of the two specified vectors.
+     * Either of the specified vectors can be this vector.
+     */
+    public void setToCrossProduct(Vector3D u, Vector3D v) {
+        // assign to local vars first in case u or v is 'this'
+        float x = u.y * v.z - u.z * v.y;
+        float y = u.z * v.x - u.x * v.z;
+        float z = u.x * v.y - u.y * v.x;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+}
+//-----------------------------------------------------------------
+
+/**
+ * The Polygon3D class represents a polygon as a series of vertices.
+ */
+class Polygon3D implements Transformable {
+
+    // temporary vectors used for calculation
+    private static Vector3D temp1 = new Vector3D();
+
+    private static Vector3D temp2 = new Vector3D();
+
+    private Vector3D[] v;
+
+    private int numVertices;
+
+    private Vector3D normal;
+
+    // the other half of the vertex buffers clipping alternates between,
+    // created the first time this polygon is clipped
+    private Vector3D[] clipV;
+
+    // the smallest clip buffer, big enough for a quad clipped by every
+    // plane, so the buffers stop growing after the first few clips
+    private static final int MIN_CLIP_VERTICES = 16;
+
+    /**
+     * Creates an empty polygon that can be used as a "scratch" polygon for
+     * transforms, projections, etc.
+     */
+    public Polygon3D() {
+        numVertices = 0;
+        v = new Vector3D[0];
+        normal = new Vector3D();
+    }
+
+    /**
+     * Creates a new Polygon3D with the specified vertices.
+     */
+    public Polygon3D(Vector3D v0, Vector3D v1, Vector3D v2) {
+        this(new Vector3D[]{v0, v1, v2});
+    }
+
+    /**
+     * Creates a new Polygon3D with the specified vertices. All the vertices are
+     * assumed to be in the same plane.
+     */
+    public Polygon3D(Vector3D v0, Vector3D v1, Vector3D v2, Vector3D v3) {
+        this(new Vector3D[]{v0, v1, v2, v3});
+    }
+
+    /**
+     * Creates a new Polygon3D with the specified vertices. All the vertices are
+     * assumed to be in the same plane.
+     */
+    public Polygon3D(Vector3D[] vertices) {
+        this.v = vertices;
+        numVertices = vertices.length;
+        calcNormal();
+    }
+
+    /**
+     * Sets this polygon to the same vertices as the specfied polygon.
+     */
+    public void setTo(Polygon3D polygon) {
+        numVertices = polygon.numVertices;
+        normal.setTo(polygon.normal);
+
+        ensureCapacity(numVertices);
+        for (int i = 0; i < numVertices; i++) {
+            v[i].setTo(polygon.v[i]);
+        }
+    }
+
+    /**
+     * Ensures this polgon has enough capacity to hold the specified number of
+     * vertices.
+     */
+    protected void ensureCapacity(int length) {
+        if (v.length < length) {
+            Vector3D[] newV = new Vector3D[length];
+            System.arraycopy(v, 0, newV, 0, v.length);
+            for (int i = v.length; i < newV.length; i++) {
+                newV[i] = new Vector3D();
+            }
+            v = newV;
+        }
+    }
+
+    /**
+     * Gets the number of vertices this polygon has.
+     */
+    public int getNumVertices() {
+        return numVertices;
+    }
+
+    /**
+     * Sets the number of vertices this polygon has, reusing the existing
+     * vertex objects. Use getVertex() to set the values of the vertices.
+     */
+    public void setNumVertices(int numVertices) {
+        ensureCapacity(numVertices);
+        this.numVertices = numVertices;
+    }
+
+    /**
+     * Gets the vertex at the specified index.
+     */
+    public Vector3D getVertex(int index) {
+        return v[index];
+    }
+
+    /**
+     * Projects this polygon onto the view window.
+     */
+    public void project(ViewWindow view) {
+        for (int i = 0; i < numVertices; i++) {
+            view.project(v[i]);
+        }
+    }
+
+    // methods from the Transformable interface.
+    public void add(Vector3D u) {
+        for (int i = 0; i < numVertices; i++) {
+            v[i].add(u);
+        }
+    }
+
+    public void subtract(Vector3D u) {
+        for (int i = 0; i < numVertices; i++) {
+            v[i].subtract(u);
+        }
+    }
+
+    public void add(Transform3D xform) {
+        for (int i = 0; i < numVertices; i++) {
+            xform.transform(v[i]);
+        }
+        xform.rotate(normal);
+    }
+
+    public void subtract(Transform3D xform) {
+        for (int i = 0; i < numVertices; i++) {
+            xform.inverseTransform(v[i]);
+        }
+        xform.inverseRotate(normal);
+    }
+
+    public void addRotation(Transform3D xform) {
+        for (int i = 0; i < numVertices; i++) {
+            xform.rotate(v[i]);
+        }
+        xform.rotate(normal);
+    }
+
+    public void subtractRotation(Transform3D xform) {
+        for (int i = 0; i < numVertices; i++) {
+            xform.inverseRotate(v[i]);
+        }
+        xform.inverseRotate(normal);
+    }
+
+    /**
+     * Calculates the unit-vector normal of this polygon. This method uses the
+     * first, second, and third vertices to calcuate the normal, so if these
+     * vertices are collinear, this method will not work. In this case, you can
+     * get the normal from the bounding rectangle. Use setNormal() to explicitly
+     * set the normal. This method uses static objects in the Polygon3D class
+     * for calculations, so this method is not thread-safe across all instances
+     * of Polygon3D.
+     */
+    public Vector3D calcNormal() {
+        if (normal == null) {
+            normal = new Vector3D();
+        }
+        temp1.setTo(v[2]);
+        temp1.subtract(v[1]);
+        temp2.setTo(v[0]);
+        temp2.subtract(v[1]);
+        normal.setToCrossProduct(temp1, temp2);
+        normal.normalize();
+        return normal;
+    }
+
+    /**
+     * Gets the normal of this polygon. Use calcNormal() if any vertices have
+     * changed.
+     */
+    public Vector3D getNormal() {
+        return normal;
+    }
+
+    /**
+     * Sets the normal of this polygon.
+     */
+    public void setNormal(Vector3D n) {
+        if (normal == null) {
+            normal = new Vector3D(n);
+        } else {
+            normal.setTo(n);
+        }
+    }
+
+    /**
+     * Tests if this polygon is facing the specified location. This method uses
+     * static objects in the Polygon3D class for calculations, so this method is
+     * not thread-safe across all instances of Polygon3D.
+     */
+    public boolean isFacing(Vector3D u) {
+        temp1.setTo(u);
+        temp1.subtract(v[0]);
+        return (normal.getDotProduct(temp1) >= 0);
+    }
+
+    /**
+     * Clips this polygon so that all vertices are in front of the clip plane,
+     * clipZ (in other words, all vertices have z <= clipZ). The value of clipZ
+     * should not be 0, as this causes divide-by-zero problems. Returns true if
+     * the polygon is at least partially in front of the clip plane.
+     */
+    public boolean clip(float clipZ) {
+        for (int i = 0; i < numVertices; i++) {
+            if (v[i].z > clipZ) {
+                return clipToPlane(0, 0, -1, -clipZ);
+            }
+        }
+        return (numVertices >= 3);
+    }
+
+    /**
+     * Clips this polygon, in camera space, against the clip planes of the
+     * specified view frustum: the near and far planes, and the side planes
+     * moved out by the frustum's guard band. After clipping, every vertex
+     * projects to within the guard band around the view window. Returns
+     * true if any of the polygon is left.
+     */
+    public boolean clip(ViewFrustum frustum) {
+        // find which planes cut the polygon, rejecting it if all of its
+        // vertices are outside any one plane
+        int planeMask = 0;
+        for (int plane = 0; plane < ViewFrustum.NUM_PLANES; plane++) {
+            Vector3D n = frustum.getClipNormal(plane);
+            float d = frustum.getClipDistance(plane);
+            int numOutside = 0;
+            for (int i = 0; i < numVertices; i++) {
+                if (n.getDotProduct(v[i]) < d) {
+                    numOutside++;
+                }
+            }
+            if (numOutside == numVertices) {
+                return false;
+            } else if (numOutside > 0) {
+                planeMask |= 1 << plane;
+            }
+        }
+
+        for (int plane = 0; planeMask != 0; plane++, planeMask >>= 1) {
+            if ((planeMask & 1) != 0) {
+                Vector3D n = frustum.getClipNormal(plane);
+                if (!clipToPlane(n.x, n.y, n.z, frustum.getClipDistance(plane))) {
+                    return false;
+                }
+            }
+        }
+        return (numVertices >= 3);
+    }
+
+    /**
+     * Clips this polygon against the plane n.p - d = 0, keeping the side
+     * where n.p - d >= 0 (Sutherland-Hodgman). The clipped vertices are
+     * written to the other vertex buffer and the two buffers are swapped, so
+     * clipping creates no objects once the buffers are big enough. Returns
+     * true if at least three vertices are left.
+     */
+    private boolean clipToPlane(float nx, float ny, float nz, float d) {
+        if (numVertices == 0) {
+            return false;
+        }
+        // each edge adds at most one vertex
+        int capacity = Math.max(numVertices * 2, MIN_CLIP_VERTICES);
+        if (clipV == null || clipV.length < capacity) {
+            Vector3D[] newV = new Vector3D[capacity];
+            int i = 0;
+            if (clipV != null) {
+                System.arraycopy(clipV, 0, newV, 0, clipV.length);
+                i = clipV.length;
+            }
+            for (; i < capacity; i++) {
+                newV[i] = new Vector3D();
+            }
+            clipV = newV;
+        }
+
+        int count = 0;
+        Vector3D prev = v[numVertices - 1];
+        float prevDist = nx * prev.x + ny * prev.y + nz * prev.z - d;
+        for (int i = 0; i < numVertices; i++) {
+            Vector3D curr = v[i];
+            float currDist = nx * curr.x + ny * curr.y + nz * curr.z - d;
+            if ((prevDist >= 0) != (currDist >= 0)) {
+                // interpolate from the inside vertex, so an edge shared by
+                // two polygons is cut at exactly the same point for both
+                Vector3D in = curr;
+                Vector3D out = prev;
+                float inDist = currDist;
+                float outDist = prevDist;
+                if (prevDist >= 0) {
+                    in = prev;
+                    out = curr;
+                    inDist = prevDist;
+                    outDist = currDist;
+                }
+                float scale = inDist / (inDist - outDist);
+                clipV[count++].setTo(in.x + scale * (out.x - in.x),
+                        in.y + scale * (out.y - in.y),
+                        in.z + scale * (out.z - in.z));
+            }
+            if (currDist >= 0) {
+                clipV[count++].setTo(curr);
+            }
+            prev = curr;
+            prevDist = currDist;
+        }
+
+        Vector3D[] temp = v;
+        v = clipV;
+        clipV = temp;
+        numVertices = count;
+        return (numVertices >= 3);
+    }
+
+    /**
+     * Inserts a new vertex at the specified index.
+     */
+    protected void insertVertex(int index, float x, float y, float z) {
+        Vector3D newVertex = v[v.length - 1];
+        newVertex.x = x;
+        newVertex.y = y;
+        newVertex.z = z;
+        for (int i = v.length - 1; i > index; i--) {
+            v[i] = v[i - 1];
+        }
+        v[index] = newVertex;
+        numVertices++;
+    }
+
+    /**
+     * Delete the vertex at the specified index.
+     */
+    protected void deleteVertex(int index) {
+        Vector3D deleted = v[index];
+        for (int i = index; i < v.length - 1; i++) {
+            v[i] = v[i + 1];
+        }
+        v[v.length - 1] = deleted;
+        numVertices--;
+    }
+
+    /**
+     * Inserts a vertex into this polygon at the specified index. The exact
+     * vertex in inserted (not a copy). The vertex array only grows when it
+     * is full, keeping a spare vertex at the end for insertVertex(int,
+     * float, float, float).
+     */
+    public void insertVertex(int index, Vector3D vertex) {
+        if (numVertices + 1 >= v.length) {
+            ensureCapacity(Math.max(numVertices + 2, v.length * 2));
+        }
+        for (int i = numVertices; i > index; i--) {
+            v[i] = v[i - 1];
+        }
+        v[index] = vertex;
+        numVertices++;
+    }
+
+}
+//-----------------------------------------------------------------
+
+/**
+ * The SolidPolygon3D class is a Polygon with a color.
+ */
+class SolidPolygon3D extends Polygon3D {
+
+    private Color color = Color.GREEN;
+
+    public SolidPolygon3D() {
+        super();
+    }
+
+    public SolidPolygon3D(Vector3D v0, Vector3D v1, Vector3D v2) {
+        this(new Vector3D[]{v0, v1, v2});
+    }
+
+    public SolidPolygon3D(Vector3D v0, Vector3D v1, Vector3D v2, Vector3D v3) {
+        this(new Vector3D[]{v0, v1, v2, v3});
+    }
+
+    public SolidPolygon3D(Vector3D[] vertices) {
+        super(vertices);
+    }
+
+    public void setTo(Polygon3D polygon) {
+        super.setTo(polygon);
+        if (polygon instanceof SolidPolygon3D) {
+            color = ((SolidPolygon3D) polygon).color;
+        }
+    }
+
+    /**
+     * Gets the color of this solid-colored polygon used for rendering this
+     * polygon.
+     */
+    public Color getColor() {
+        return color;
+    }
+
+    /**
+     * Sets the color of this solid-colored polygon used for rendering this
+     * polygon.
+     */
+    public void setColor(Color color) {
+        this.color = color;
+    }
+
+}
+
+/**
+ * The IndexedMesh class is a set of polygons that share their vertices. The
+ * vertex positions are kept in flat float arrays and each polygon is a run of
+ * int indices into them. Each frame, transform() moves every vertex into
+ * camera space and projects it in one pass, so a corner shared by several
+ * faces is transformed once, and no per-vertex objects are involved.
+ */
+class IndexedMesh {
+
+    private static final float CLIP_Z = -1;
+
+    protected int numVertices;
+
+    protected float[] x;
+
+    protected float[] y;
+
+    protected float[] z;
+
+    protected int numPolygons;
+
+    // the indices of polygon i are indices[polygonStart[i]] up to
+    // indices[polygonStart[i + 1]]
+    protected int[] polygonStart;
+
+    protected int[] indices;
+
+    protected float[] normalX;
+
+    protected float[] normalY;
+
+    protected float[] normalZ;
+
+    protected Color[] colors;
+
+    // camera-space and projected vertices of the current frame
+    protected float[] cameraX;
+
+    protected float[] cameraY;
+
+    protected float[] cameraZ;
+
+    protected float[] screenX;
+
+    protected float[] screenY;
+
+    // the mesh-to-camera matrix of the current frame, laid out like
+    // Transform3D.getMatrix(), and the camera location in mesh space
+    protected float[] matrix = new float[12];
+
+    protected float viewerX;
+
+    protected float viewerY;
+
+    protected float viewerZ;
+
+    /**
+     * Creates an empty IndexedMesh.
+     */
+    public IndexedMesh() {
+        x = new float[16];
+        y = new float[16];
+        z = new float[16];
+        polygonStart = new int[17];
+        indices = new int[64];
+        normalX = new float[16];
+        normalY = new float[16];
+        normalZ = new float[16];
+        colors = new Color[16];
+    }
+
+    /**
+     * Creates an IndexedMesh that uses the specified arrays, without copying
+     * them. polygonStart must have numPolygons + 1 entries.
+     */
+    public IndexedMesh(int numVertices, float[] x, float[] y, float[] z,
+            int numPolygons, int[] polygonStart, int[] indices,
+            float[] normalX, float[] normalY, float[] normalZ, Color[] colors) {
+        this.numVertices = numVertices;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.numPolygons = numPolygons;
+        this.polygonStart = polygonStart;
+        this.indices = indices;
+        this.normalX = normalX;
+        this.normalY = normalY;
+        this.normalZ = normalZ;
+        this.colors = colors;
+    }
+
+    /**
+     * Creates an IndexedMesh from a list of Polygon3Ds. Vertices with equal
+     * coordinates are shared between polygons.
+     */
+    public static IndexedMesh fromPolygons(List polygons) {
+        IndexedMesh mesh = new IndexedMesh();
+        HashMap vertexIndices = new HashMap();
+        for (int i = 0; i < polygons.size(); i++) {
+            Polygon3D poly = (Polygon3D) polygons.get(i);
+            int[] polyIndices = new int[poly.getNumVertices()];
+            for (int j = 0; j < polyIndices.length; j++) {
+                Vector3D v = poly.getVertex(j);
+                Integer index = (Integer) vertexIndices.get(v);
+                if (index == null) {
+                    index = Integer.valueOf(mesh.addVertex(v.x, v.y, v.z));
+                    vertexIndices.put(new Vector3D(v), index);
+                }
+                polyIndices[j] = index.intValue();
+            }
+            Color color = Color.GREEN;
+            if (poly instanceof SolidPolygon3D) {
+                color = ((SolidPolygon3D) poly).getColor();
+            }
+            mesh.addPolygon(polyIndices, poly.getNormal(), color);
+        }
+        return mesh;
+    }
+
+    /**
+     * Adds a vertex and returns its index.
+     */
+    public int addVertex(float x, float y, float z) {
+        if (numVertices == this.x.length) {
+            int length = numVertices * 2;
+            this.x = Arrays.copyOf(this.x, length);
+            this.y = Arrays.copyOf(this.y, length);
+            this.z = Arrays.copyOf(this.z, length);
+        }
+        this.x[numVertices] = x;
+        this.y[numVertices] = y;
+        this.z[numVertices] = z;
+        return numVertices++;
+    }
+
+    /**
+     * Adds a polygon made of the specified vertex indices, with the specified
+     * unit normal and color.
+     */
+    public void addPolygon(int[] vertexIndices, Vector3D normal, Color color) {
+        if (numPolygons == colors.length) {
+            int length = numPolygons * 2;
+            polygonStart = Arrays.copyOf(polygonStart, length + 1);
+            normalX = Arrays.copyOf(normalX, length);
+            normalY = Arrays.copyOf(normalY, length);
+            normalZ = Arrays.copyOf(normalZ, length);
+            colors = Arrays.copyOf(colors, length);
+        }
+        int start = polygonStart[numPolygons];
+        int end = start + vertexIndices.length;
+        if (end > indices.length) {
+            indices = Arrays.copyOf(indices, Math.max(end, indices.length * 2));
+        }
+        System.arraycopy(vertexIndices, 0, indices, start, vertexIndices.length);
+        normalX[numPolygons] = normal.x;
+        normalY[numPolygons] = normal.y;
+        normalZ[numPolygons] = normal.z;
+        colors[numPolygons] = color;
+        numPolygons++;
+        polygonStart[numPolygons] = end;
+    }
+
+    /**
+     * Adds a polygon made of the specified vertex indices, with the specified
+     * color. The normal is calculated the same way as Polygon3D.calcNormal(),
+     * so the polygon faces the side its vertices are counter-clockwise from.
+     * Degenerate polygons get a zero normal.
+     */
+    public void addPolygon(int[] vertexIndices, Color color) {
+        int i0 = vertexIndices[0];
+        int i1 = vertexIndices[1];
+        int i2 = vertexIndices[2];
+        float ax = x[i2] - x[i1];
+        float ay = y[i2] - y[i1];
+        float az = z[i2] - z[i1];
+        float bx = x[i0] - x[i1];
+        float by = y[i0] - y[i1];
+        float bz = z[i0] - z[i1];
+        Vector3D normal = new Vector3D(ay * bz - az * by, az * bx - ax * bz,
+                ax * by - ay * bx);
+        if (normal.length() > 0) {
+            normal.normalize();
+        }
+        addPolygon(vertexIndices, normal, color);
+    }
+
+    public int getNumVertices() {
+        return numVertices;
     }
 
-    /**
-     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
-     * and 0 otherwise.
-     */
-    public static int sign(int v) {
-        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    public int getNumPolygons() {
+        return numPolygons;
     }
 
     /**
-     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
-     * and 0 otherwise.
+     * Gets the color of the specified polygon.
      */
-    public static int sign(long v) {
-        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    public Color getColor(int polygon) {
+        return colors[polygon];
     }
 
     /**
-     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
-     * and 0 otherwise.
+     * Moves every vertex by the specified amount.
      */
-    public static int sign(float v) {
-        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    public void translate(float dx, float dy, float dz) {
+        for (int i = 0; i < numVertices; i++) {
+            x[i] += dx;
+            y[i] += dy;
+            z[i] += dz;
+        }
     }
 
     /**
-     * Returns the sign of the number. Returns -1 for negative, 1 for positive,
-     * and 0 otherwise.
+     * Sets center to the center of the bounding box of the vertices, and
+     * returns the radius of a sphere around it that holds every vertex.
      */
-    public static int sign(double v) {
-        return (v > 0) ? 1 : (v < 0) ? -1 : 0;
+    public float getBounds(Vector3D center) {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < numVertices; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+        center.setTo((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2);
+        float dx = maxX - minX;
+        float dy = maxY - minY;
+        float dz = maxZ - minZ;
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz) / 2;
     }
 
     /**
-     * Faster ceil function to convert a float to an int. Contrary to the
-     * java.lang.Math ceil function, this function takes a float as an argument,
-     * returns an int instead of a double, and does not consider special cases.
+     * Transforms every vertex to the camera space of the specified camera,
+     * and projects them onto the view window. This uses the same arithmetic
+     * as Vector3D.subtract(Transform3D) and ViewWindow.project(), so meshes
+     * draw exactly like the same polygons drawn one by one. Projected values
+     * are only meaningful for vertices in front of the clip plane.
      */
-    public static int ceil(float f) {
-        if (f > 0) {
-            return (int) f + 1;
-        } else {
-            return (int) f;
-        }
+    public void transform(Transform3D camera, ViewWindow view) {
+        camera.getInverseMatrix(matrix);
+        Vector3D location = camera.getLocation();
+        viewerX = location.x;
+        viewerY = location.y;
+        viewerZ = location.z;
+        transformVertices(view);
     }
 
     /**
-     * Faster floor function to convert a float to an int. Contrary to the
-     * java.lang.Math floor function, this function takes a float as an
-     * argument, returns an int instead of a double, and does not consider
-     * special cases.
+     * Transforms every vertex by the transform at offset in transforms,
+     * laid out like Transform3D.getMatrix(), and then to the camera space of
+     * the specified camera, and projects them onto the view window. This is
+     * how one mesh is drawn at many places without copying it.
      */
-    public static int floor(float f) {
-        if (f >= 0) {
-            return (int) f;
-        } else {
-            return (int) f - 1;
+    public void transform(Transform3D camera, float[] transforms, int offset,
+            ViewWindow view) {
+        // the combined matrix is the camera matrix times the instance matrix
+        camera.getInverseMatrix(matrix);
+        float c00 = matrix[0];
+        float c01 = matrix[1];
+        float c02 = matrix[2];
+        float c10 = matrix[3];
+        float c11 = matrix[4];
+        float c12 = matrix[5];
+        float c20 = matrix[6];
+        float c21 = matrix[7];
+        float c22 = matrix[8];
+        for (int row = 0; row < 9; row += 3) {
+            float a0 = matrix[row];
+            float a1 = matrix[row + 1];
+            float a2 = matrix[row + 2];
+            matrix[row] = a0 * transforms[offset] + a1 * transforms[offset + 3]
+                    + a2 * transforms[offset + 6];
+            matrix[row + 1] = a0 * transforms[offset + 1] + a1 * transforms[offset + 4]
+                    + a2 * transforms[offset + 7];
+            matrix[row + 2] = a0 * transforms[offset + 2] + a1 * transforms[offset + 5]
+                    + a2 * transforms[offset + 8];
         }
+        float lx = transforms[offset + 9];
+        float ly = transforms[offset + 10];
+        float lz = transforms[offset + 11];
+        matrix[9] += c00 * lx + c01 * ly + c02 * lz;
+        matrix[10] += c10 * lx + c11 * ly + c12 * lz;
+        matrix[11] += c20 * lx + c21 * ly + c22 * lz;
+
+        // the camera location in mesh space, for the back-face test, is the
+        // inverse of the instance transform applied to it
+        Vector3D location = camera.getLocation();
+        float dx = location.x - lx;
+        float dy = location.y - ly;
+        float dz = location.z - lz;
+        viewerX = transforms[offset] * dx + transforms[offset + 3] * dy
+                + transforms[offset + 6] * dz;
+        viewerY = transforms[offset + 1] * dx + transforms[offset + 4] * dy
+                + transforms[offset + 7] * dz;
+        viewerZ = transforms[offset + 2] * dx + transforms[offset + 5] * dy
+                + transforms[offset + 8] * dz;
+        transformVertices(view);
     }
 
     /**
-     * Returns true if the specified number is a power of 2.
+     * Applies the current matrix to every vertex, and projects them.
+     * <p>
+     * The transform loop has no dependencies between vertices and no calls,
+     * so HotSpot's superword pass compiles it to SIMD instructions where the
+     * CPU has them.
      */
-    public static boolean isPowerOfTwo(int n) {
-        return ((n & (n - 1)) == 0);
+    private void transformVertices(ViewWindow view) {
+        if (cameraX == null || cameraX.length < numVertices) {
+            cameraX = new float[x.length];
+            cameraY = new float[x.length];
+            cameraZ = new float[x.length];
+            screenX = new float[x.length];
+            screenY = new float[x.length];
+        }
+        float m00 = matrix[0];
+        float m01 = matrix[1];
+        float m02 = matrix[2];
+        float m10 = matrix[3];
+        float m11 = matrix[4];
+        float m12 = matrix[5];
+        float m20 = matrix[6];
+        float m21 = matrix[7];
+        float m22 = matrix[8];
+        float tx = matrix[9];
+        float ty = matrix[10];
+        float tz = matrix[11];
+        for (int i = 0; i < numVertices; i++) {
+            float vx = x[i];
+            float vy = y[i];
+            float vz = z[i];
+            cameraX[i] = m00 * vx + m01 * vy + m02 * vz + tx;
+            cameraY[i] = m10 * vx + m11 * vy + m12 * vz + ty;
+            cameraZ[i] = m20 * vx + m21 * vy + m22 * vz + tz;
+        }
+
+        float distance = view.getDistance();
+        for (int i = 0; i < numVertices; i++) {
+            float vz = -cameraZ[i];
+            screenX[i] = view.convertFromViewXToScreenX(distance * cameraX[i] / vz);
+            screenY[i] = view.convertFromViewYToScreenY(distance * cameraY[i] / vz);
+        }
     }
 
     /**
-     * Gets the number of "on" bits in an integer.
+     * Sets dest to the projected polygon at the specified index, using the
+     * vertices from the last call to transform(). Polygons that cross the
+     * clip plane or reach outside the frustum's guard band are clipped and
+     * projected here. Returns false if the polygon faces away from the camera
+     * or is clipped away entirely.
      */
-    public static int getBitCount(int n) {
-        int count = 0;
-        while (n > 0) {
-            count += (n & 1);
-            n >>= 1;
+    public boolean getProjectedPolygon(int polygon, ViewFrustum frustum,
+            Polygon3D dest) {
+        int start = polygonStart[polygon];
+        int end = polygonStart[polygon + 1];
+
+        // back-face test, same as Polygon3D.isFacing()
+        int first = indices[start];
+        float nx = normalX[polygon];
+        float ny = normalY[polygon];
+        float nz = normalZ[polygon];
+        if (nx * (viewerX - x[first]) + ny * (viewerY - y[first])
+                + nz * (viewerZ - z[first]) < 0) {
+            return false;
         }
-        return count;
+
+        boolean needsClip = false;
+        for (int i = start; i < end; i++) {
+            int index = indices[i];
+            if (cameraZ[index] > CLIP_Z
+                    || frustum.isOutsideGuardBand(screenX[index], screenY[index])) {
+                needsClip = true;
+                break;
+            }
+        }
+
+        dest.setNumVertices(end - start);
+        for (int i = start; i < end; i++) {
+            int index = indices[i];
+            if (needsClip) {
+                dest.getVertex(i - start).setTo(cameraX[index], cameraY[index],
+                        cameraZ[index]);
+            } else {
+                dest.getVertex(i - start).setTo(screenX[index], screenY[index],
+                        cameraZ[index]);
+            }
+        }
+        dest.getNormal().setTo(matrix[0] * nx + matrix[1] * ny + matrix[2] * nz,
+                matrix[3] * nx + matrix[4] * ny + matrix[5] * nz,
+                matrix[6] * nx + matrix[7] * ny + matrix[8] * nz);
+
+        if (needsClip) {
+            if (!dest.clip(frustum)) {
+                return false;
+            }
+            dest.project(frustum.getViewWindow());
+        }
+        return true;
     }
 }
 //-----------------------------------------------------------------
 
 /**
- * The GameAction class is an abstract to a user-initiated action, like jumping
- * or moving. GameActions can be mapped to keys or the mouse with the
- * InputManager.
+ * The InstancedMesh class draws one IndexedMesh at many places. Each instance
+ * is only a transform, kept as 12 floats in one shared array, and a tint
+ * from a small palette, so thousands of instances cost little more memory
+ * than the mesh itself.
+ * <p>
+ * Each instance is culled by the mesh's bounding sphere first. Visible
+ * instances are drawn far to near, or near to far for front-to-back
+ * renderers, and the colors of every polygon in every tint are worked out
+ * when the tint is added, so drawing creates no objects.
  */
-class GameAction {
+class InstancedMesh {
 
     /**
-     * Normal behavior. The isPressed() method returns true as long as the key
-     * is held down.
+     * The number of floats each transform takes in getTransforms().
      */
-    public static final int NORMAL = 0;
+    public static final int TRANSFORM_SIZE = 12;
 
-    /**
-     * Initial press behavior. The isPressed() method returns true only after
-     * the key is first pressed, and not again until the key is released and
-     * pressed again.
-     */
-    public static final int DETECT_INITAL_PRESS_ONLY = 1;
+    private IndexedMesh mesh;
 
-    private static final int STATE_RELEASED = 0;
+    // bounding sphere of the mesh in mesh space
+    private Vector3D meshCenter = new Vector3D();
 
-    private static final int STATE_PRESSED = 1;
+    private float radius;
 
-    private static final int STATE_WAITING_FOR_RELEASE = 2;
+    private int numInstances;
 
-    private String name;
+    private float[] transforms;
 
-    private int behavior;
+    private int[] tints;
 
-    private int amount;
+    // world-space centers of the instances' bounding spheres
+    private float[] centers;
 
-    private int state;
+    // the mesh's polygon colors, tinted with each tint
+    private Color[][] tintColors = new Color[0][];
 
-    /**
-     * Create a new GameAction with the NORMAL behavior.
-     */
-    public GameAction(String name) {
-        this(name, NORMAL);
-    }
+    // the visible instances of the current frame, as distance << 32 | index
+    private long[] visible;
 
     /**
-     * Create a new GameAction with the specified behavior.
+     * Creates an InstancedMesh of the specified mesh with no instances.
      */
-    public GameAction(String name, int behavior) {
-        this.name = name;
-        this.behavior = behavior;
-        reset();
+    public InstancedMesh(IndexedMesh mesh) {
+        this.mesh = mesh;
+        radius = mesh.getBounds(meshCenter);
+        transforms = new float[16 * TRANSFORM_SIZE];
+        tints = new int[16];
+        centers = new float[16 * 3];
+        visible = new long[16];
     }
 
-    /**
-     * Gets the name of this GameAction.
-     */
-    public String getName() {
-        return name;
+    public IndexedMesh getMesh() {
+        return mesh;
     }
 
-    /**
-     * Resets this GameAction so that it appears like it hasn't been pressed.
-     */
-    public void reset() {
-        state = STATE_RELEASED;
-        amount = 0;
+    public int getNumInstances() {
+        return numInstances;
     }
 
     /**
-     * Taps this GameAction. Same as calling press() followed by release().
+     * Adds a tint and returns its index. Each color channel of the mesh's
+     * polygons is scaled by the tint's, so white leaves them unchanged.
      */
-    public synchronized void tap() {
-        press();
-        release();
+    public int addTint(Color tint) {
+        Color[] colors = new Color[mesh.getNumPolygons()];
+        for (int i = 0; i < colors.length; i++) {
+            Color color = mesh.getColor(i);
+            colors[i] = new Color(color.getRed() * tint.getRed() / 255,
+                    color.getGreen() * tint.getGreen() / 255,
+                    color.getBlue() * tint.getBlue() / 255);
+        }
+        tintColors = Arrays.copyOf(tintColors, tintColors.length + 1);
+        tintColors[tintColors.length - 1] = colors;
+        return tintColors.length - 1;
     }
 
     /**
-     * Signals that the key was pressed.
+     * Adds an instance with the specified transform and tint, and returns
+     * its index. The transform is copied.
      */
-    public synchronized void press() {
-        press(1);
+    public int addInstance(Transform3D transform, int tint) {
+        if (tint < 0 || tint >= tintColors.length) {
+            throw new IllegalArgumentException("No such tint: " + tint);
+        }
+        if (numInstances == tints.length) {
+            int length = numInstances * 2;
+            transforms = Arrays.copyOf(transforms, length * TRANSFORM_SIZE);
+            tints = Arrays.copyOf(tints, length);
+            centers = Arrays.copyOf(centers, length * 3);
+            visible = new long[length];
+        }
+        transform.getMatrix(transforms, numInstances * TRANSFORM_SIZE);
+        tints[numInstances] = tint;
+        Vector3D center = new Vector3D(meshCenter);
+        transform.transform(center);
+        centers[numInstances * 3] = center.x;
+        centers[numInstances * 3 + 1] = center.y;
+        centers[numInstances * 3 + 2] = center.z;
+        return numInstances++;
     }
 
     /**
-     * Signals that the key was pressed a specified number of times, or that the
-     * mouse move a spcified distance.
+     * Gets the transforms of all the instances, TRANSFORM_SIZE floats each,
+     * laid out like Transform3D.getMatrix().
      */
-    public synchronized void press(int amount) {
-        if (state != STATE_WAITING_FOR_RELEASE) {
-            this.amount += amount;
-            state = STATE_PRESSED;
-        }
-
+    public float[] getTransforms() {
+        return transforms;
     }
 
     /**
-     * Signals that the key was released
+     * Gets the polygon colors of the specified instance.
      */
-    public synchronized void release() {
-        state = STATE_RELEASED;
+    public Color[] getColors(int instance) {
+        return tintColors[tints[instance]];
     }
 
     /**
-     * Returns whether the key was pressed or not since last checked.
+     * Draws every instance whose bounding sphere is in the view frustum,
+     * nearest first for renderers that want front-to-back order and farthest
+     * first otherwise. The polygons of each instance are drawn in mesh
+     * order, or in reverse for renderers where the first polygon drawn stays
+     * on top, so a door is drawn before the wall it is on.
      */
-    public synchronized boolean isPressed() {
-        return (getAmount() != 0);
+    public void draw(Graphics2D g, PolygonRenderer renderer) {
+        RenderStats stats = renderer.getStats();
+        ViewFrustum frustum = renderer.getFrustum();
+        Transform3D camera = renderer.getCamera();
+        Vector3D location = camera.getLocation();
+        int numPolygons = mesh.getNumPolygons();
+        int numVisible = 0;
+        for (int i = 0; i < numInstances; i++) {
+            float x = centers[i * 3];
+            float y = centers[i * 3 + 1];
+            float z = centers[i * 3 + 2];
+            stats.volumesTested++;
+            if (frustum.testSphere(x, y, z, radius, camera,
+                    ViewFrustum.ALL_PLANES) == ViewFrustum.OUTSIDE) {
+                stats.volumesCulled++;
+                stats.polygonsCulled += numPolygons;
+                continue;
+            }
+            // distances are positive, so their float bits sort like them
+            float dx = x - location.x;
+            float dy = y - location.y;
+            float dz = z - location.z;
+            float distance = dx * dx + dy * dy + dz * dz;
+            visible[numVisible++] = ((long) Float.floatToIntBits(distance) << 32) | i;
+        }
+        sort(visible, 0, numVisible - 1);
+
+        if (renderer.isFrontToBack()) {
+            for (int i = 0; i < numVisible && !renderer.isViewCovered(); i++) {
+                renderer.draw(g, this, (int) visible[i]);
+            }
+        } else {
+            for (int i = numVisible - 1; i >= 0; i--) {
+                renderer.draw(g, this, (int) visible[i]);
+            }
+        }
     }
 
     /**
-     * For keys, this is the number of times the key was pressed since it was
-     * last checked. For mouse movement, this is the distance moved.
+     * Sorts the keys from lo to hi (inclusive) in place. Arrays.sort() can
+     * allocate buffers to merge runs of large arrays, and the keys are
+     * nearly sorted from one frame to the next, which is when it finds runs.
      */
-    public synchronized int getAmount() {
-        int retVal = amount;
-        if (retVal != 0) {
-            if (state == STATE_RELEASED) {
-                amount = 0;
-            } else if (behavior == DETECT_INITAL_PRESS_ONLY) {
-                state = STATE_WAITING_FOR_RELEASE;
-                amount = 0;
+    private static void sort(long[] keys, int lo, int hi) {
+        while (hi - lo > 16) {
+            // median of three, so sorted keys split evenly
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < keys[lo]) {
+                swap(keys, mid, lo);
+            }
+            if (keys[hi] < keys[lo]) {
+                swap(keys, hi, lo);
+            }
+            if (keys[hi] < keys[mid]) {
+                swap(keys, hi, mid);
+            }
+            long pivot = keys[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, i++, j--);
+                }
+            }
+            // recurse into the smaller half, so the stack stays shallow
+            if (j - lo < hi - i) {
+                sort(keys, lo, j);
+                lo = i;
+            } else {
+                sort(keys, i, hi);
+                hi = j;
             }
         }
-        return retVal;
+        for (int i = lo + 1; i <= hi; i++) {
+            long key = keys[i];
+            int j = i - 1;
+            while (j >= lo && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                j--;
+            }
+            keys[j + 1] = key;
+        }
+    }
+
+    private static void swap(long[] keys, int i, int j) {
+        long temp = keys[i];
+        keys[i] = keys[j];
+        keys[j] = temp;
     }
 }
 //-----------------------------------------------------------------
 
 /**
- * The Vector3D class implements a 3D vector with the floating-point values x,
- * y, and z. Vectors can be thought of either as a (x,y,z) point or as a vector
- * from (0,0,0) to (x,y,z).
+ * The SceneFile class reads and writes IndexedMeshes in a compact binary
+ * format, and converts Wavefront OBJ files to it. Files are memory-mapped and
+ * each block is copied straight into the mesh's arrays through a FloatBuffer
+ * or IntBuffer view, so loading creates no per-vertex or per-polygon objects
+ * and takes about as long as copying the file.
+ * <p>
+ * All values are 4 bytes, little-endian:
+ * <pre>
+ * header:  magic "H3DS", version, numVertices, numPolygons, numIndices,
+ *          numColors
+ * floats:  x[numVertices], y[numVertices], z[numVertices]
+ * ints:    polygonStart[numPolygons + 1], indices[numIndices]
+ * floats:  normalX[numPolygons], normalY[numPolygons], normalZ[numPolygons]
+ * ints:    palette[numColors] (RGB), color[numPolygons] (palette index)
+ * </pre>
+ * Normals are stored, not calculated on load. Polygons are front-facing when
+ * their vertices are counter-clockwise, as in OBJ.
  */
-class Vector3D implements Transformable {
+class SceneFile {
 
-    public float x;
+    public static final int MAGIC = 0x53443348; // "H3DS" little-endian
 
-    public float y;
+    public static final int VERSION = 1;
 
-    public float z;
+    private static final int HEADER_SIZE = 6 * 4;
 
-    /**
-     * Creates a new Vector3D at (0,0,0).
-     */
-    public Vector3D() {
-        this(0, 0, 0);
+    private SceneFile() {
     }
 
     /**
-     * Creates a new Vector3D with the same values as the specified Vector3D.
+     * Converts an OBJ file to a scene file:
+     * java game.collection.SceneFile in.obj out.h3d
      */
-    public Vector3D(Vector3D v) {
-        this(v.x, v.y, v.z);
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: SceneFile in.obj out.h3d");
+            System.exit(1);
+        }
+        IndexedMesh mesh = readObj(new File(args[0]));
+        write(mesh, new File(args[1]));
+        System.out.println(mesh.getNumVertices() + " vertices, "
+                + mesh.getNumPolygons() + " polygons");
     }
 
     /**
-     * Creates a new Vector3D with the specified (x, y, z) values.
+     * Loads a scene file.
      */
-    public Vector3D(float x, float y, float z) {
-        setTo(x, y, z);
+    public static IndexedMesh load(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            return read(buffer, file);
+        } finally {
+            in.close();
+        }
     }
 
-    /**
-     * Checks if this Vector3D is equal to the specified Object. They are equal
-     * only if the specified Object is a Vector3D and the two Vector3D's x, y,
-     * and z coordinates are equal.
-     */
-    public boolean equals(Object obj) {
-        Vector3D v = (Vector3D) obj;
-        return (v.x == x && v.y == y && v.z == z);
+    private static IndexedMesh read(ByteBuffer buffer, File file) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a scene file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + " has unsupported version " + version);
+        }
+        int numVertices = buffer.getInt();
+        int numPolygons = buffer.getInt();
+        int numIndices = buffer.getInt();
+        int numColors = buffer.getInt();
+        if (numVertices < 0 || numPolygons < 0 || numIndices < 0
+                || numColors < 0 || buffer.remaining() != 4L * (3L * numVertices
+                + 5L * numPolygons + 1 + numIndices + numColors)) {
+            throw new IOException(file + " is truncated or corrupt");
+        }
+
+        float[] x = new float[numVertices];
+        float[] y = new float[numVertices];
+        float[] z = new float[numVertices];
+        buffer.position(getFloats(buffer, x));
+        buffer.position(getFloats(buffer, y));
+        buffer.position(getFloats(buffer, z));
+
+        int[] polygonStart = new int[numPolygons + 1];
+        int[] indices = new int[numIndices];
+        buffer.position(getInts(buffer, polygonStart));
+        buffer.position(getInts(buffer, indices));
+
+        float[] normalX = new float[numPolygons];
+        float[] normalY = new float[numPolygons];
+        float[] normalZ = new float[numPolygons];
+        buffer.position(getFloats(buffer, normalX));
+        buffer.position(getFloats(buffer, normalY));
+        buffer.position(getFloats(buffer, normalZ));
+
+        int[] palette = new int[numColors];
+        buffer.position(getInts(buffer, palette));
+        Color[] paletteColors = new Color[numColors];
+        for (int i = 0; i < numColors; i++) {
+            paletteColors[i] = new Color(palette[i]);
+        }
+
+        // polygons with the same color share one Color object
+        int[] colorIndices = new int[numPolygons];
+        getInts(buffer, colorIndices);
+        Color[] colors = new Color[numPolygons];
+        for (int i = 0; i < numPolygons; i++) {
+            int index = colorIndices[i];
+            if (index < 0 || index >= numColors) {
+                throw new IOException(file + " has a bad color index");
+            }
+            colors[i] = paletteColors[index];
+        }
+
+        // check the indices, so a bad file can't cause errors while drawing
+        if (polygonStart[0] != 0 || polygonStart[numPolygons] != numIndices) {
+            throw new IOException(file + " has bad polygon offsets");
+        }
+        for (int i = 0; i < numPolygons; i++) {
+            if (polygonStart[i + 1] - polygonStart[i] < 3) {
+                throw new IOException(file + " has a polygon with fewer than 3 vertices");
+            }
+        }
+        for (int i = 0; i < numIndices; i++) {
+            if (indices[i] < 0 || indices[i] >= numVertices) {
+                throw new IOException(file + " has a bad vertex index");
+            }
+        }
+
+        return new IndexedMesh(numVertices, x, y, z, numPolygons, polygonStart,
+                indices, normalX, normalY, normalZ, colors);
     }
 
     /**
-     * Checks if this Vector3D is equal to the specified x, y, and z
-     * coordinates.
+     * Copies floats from the buffer's position into the array, and returns
+     * the position after them.
      */
-    public boolean equals(float x, float y, float z) {
-        return (this.x == x && this.y == y && this.z == z);
+    private static int getFloats(ByteBuffer buffer, float[] array) {
+        buffer.asFloatBuffer().get(array);
+        return buffer.position() + array.length * 4;
     }
 
     /**
-     * Sets the vector to the same values as the specified Vector3D.
+     * Copies ints from the buffer's position into the array, and returns the
+     * position after them.
      */
-    public void setTo(Vector3D v) {
-        setTo(v.x, v.y, v.z);
+    private static int getInts(ByteBuffer buffer, int[] array) {
+        buffer.asIntBuffer().get(array);
+        return buffer.position() + array.length * 4;
     }
 
     /**
-     * Sets this vector to the specified (x, y, z) values.
+     * Writes a mesh to a scene file.
      */
-    public void setTo(float x, float y, float z) {
-        this.x = x;
-        this.y = y;
-        this.z = z;
+    public static void write(IndexedMesh mesh, File file) throws IOException {
+        int numVertices = mesh.numVertices;
+        int numPolygons = mesh.numPolygons;
+        int numIndices = mesh.polygonStart[numPolygons];
+
+        // build the palette
+        HashMap paletteIndices = new HashMap();
+        int[] palette = new int[16];
+        int numColors = 0;
+        int[] colorIndices = new int[numPolygons];
+        for (int i = 0; i < numPolygons; i++) {
+            Integer rgb = Integer.valueOf(mesh.colors[i].getRGB() & 0xffffff);
+            Integer index = (Integer) paletteIndices.get(rgb);
+            if (index == null) {
+                index = Integer.valueOf(numColors);
+                paletteIndices.put(rgb, index);
+                if (numColors == palette.length) {
+                    palette = Arrays.copyOf(palette, numColors * 2);
+                }
+                palette[numColors++] = rgb.intValue();
+            }
+            colorIndices[i] = index.intValue();
+        }
+
+        long size = HEADER_SIZE + 4L * (3L * numVertices + 5L * numPolygons + 1
+                + numIndices + numColors);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(size);
+            FileChannel channel = out.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(numVertices);
+            buffer.putInt(numPolygons);
+            buffer.putInt(numIndices);
+            buffer.putInt(numColors);
+            buffer.position(putFloats(buffer, mesh.x, numVertices));
+            buffer.position(putFloats(buffer, mesh.y, numVertices));
+            buffer.position(putFloats(buffer, mesh.z, numVertices));
+            buffer.position(putInts(buffer, mesh.polygonStart, numPolygons + 1));
+            buffer.position(putInts(buffer, mesh.indices, numIndices));
+            buffer.position(putFloats(buffer, mesh.normalX, numPolygons));
+            buffer.position(putFloats(buffer, mesh.normalY, numPolygons));
+            buffer.position(putFloats(buffer, mesh.normalZ, numPolygons));
+            buffer.position(putInts(buffer, palette, numColors));
+            putInts(buffer, colorIndices, numPolygons);
+            buffer.force();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int putFloats(ByteBuffer buffer, float[] array, int length) {
+        buffer.asFloatBuffer().put(array, 0, length);
+        return buffer.position() + length * 4;
+    }
+
+    private static int putInts(ByteBuffer buffer, int[] array, int length) {
+        buffer.asIntBuffer().put(array, 0, length);
+        return buffer.position() + length * 4;
     }
 
     /**
-     * Adds the specified (x, y, z) values to this vector.
+     * Reads the vertices and faces of an OBJ file. Face colors come from the
+     * diffuse color (Kd) of the material in use, if its mtllib can be found
+     * next to the OBJ file, and are light gray otherwise. Texture coordinates
+     * and vertex normals are ignored; face normals are calculated.
      */
-    public void add(float x, float y, float z) {
-        this.x += x;
-        this.y += y;
-        this.z += z;
+    public static IndexedMesh readObj(File file) throws IOException {
+        IndexedMesh mesh = new IndexedMesh();
+        HashMap materials = new HashMap();
+        Color defaultColor = Color.LIGHT_GRAY;
+        Color color = defaultColor;
+        int[] faceIndices = new int[16];
+
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                String[] tokens = line.trim().split("\\s+");
+                String type = tokens[0];
+                try {
+                    if (type.equals("v")) {
+                        mesh.addVertex(Float.parseFloat(tokens[1]),
+                                Float.parseFloat(tokens[2]),
+                                Float.parseFloat(tokens[3]));
+                    } else if (type.equals("f")) {
+                        int numIndices = tokens.length - 1;
+                        if (numIndices < 3) {
+                            continue;
+                        }
+                        if (numIndices > faceIndices.length) {
+                            faceIndices = new int[numIndices];
+                        }
+                        for (int i = 0; i < numIndices; i++) {
+                            faceIndices[i] = parseObjIndex(tokens[i + 1],
+                                    mesh.getNumVertices());
+                        }
+                        mesh.addPolygon(Arrays.copyOf(faceIndices, numIndices),
+                                color);
+                    } else if (type.equals("usemtl")) {
+                        color = (Color) materials.get(tokens[1]);
+                        if (color == null) {
+                            color = defaultColor;
+                        }
+                    } else if (type.equals("mtllib")) {
+                        File mtlFile = new File(file.getParentFile(), tokens[1]);
+                        if (mtlFile.exists()) {
+                            readMtl(mtlFile, materials);
+                        }
+                    }
+                } catch (RuntimeException ex) {
+                    // bad number, missing value or index out of range
+                    throw new IOException(file + ":" + lineNumber + ": " + ex, ex);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return mesh;
     }
 
     /**
-     * Subtracts the specified (x, y, z) values to this vector.
+     * Parses a face vertex such as "7", "7/2" or "7/2/5", returning the
+     * zero-based vertex index. Negative OBJ indices count back from the last
+     * vertex.
      */
-    public void subtract(float x, float y, float z) {
-        add(-x, -y, -z);
+    private static int parseObjIndex(String token, int numVertices) {
+        int slash = token.indexOf('/');
+        int index = Integer.parseInt((slash < 0) ? token : token.substring(0, slash));
+        index = (index < 0) ? numVertices + index : index - 1;
+        if (index < 0 || index >= numVertices) {
+            throw new IndexOutOfBoundsException("vertex " + token);
+        }
+        return index;
+    }
+
+    private static void readMtl(File file, HashMap materials) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String name = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens[0].equals("newmtl") && tokens.length > 1) {
+                    name = tokens[1];
+                } else if (tokens[0].equals("Kd") && name != null
+                        && tokens.length > 3) {
+                    materials.put(name, new Color(
+                            clamp(Float.parseFloat(tokens[1])),
+                            clamp(Float.parseFloat(tokens[2])),
+                            clamp(Float.parseFloat(tokens[3]))));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(1, value));
     }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The BSPTree class is a binary space partitioning tree built once from a set
+ * of static polygons. Each node splits space with the plane of one of the
+ * polygons; polygons that cross a plane are split in two. The tree can then
+ * be walked in front-to-back or back-to-front order from any camera location
+ * without sorting. Each node also has a bounding sphere around its subtree,
+ * so subtrees outside the view frustum are skipped.
+ */
+class BSPTree {
+
+    private static final float EPSILON = 0.01f;
+
+    // how many polygons are tried as the partition plane at each node
+    private static final int NUM_CANDIDATES = 8;
+
+    private static final int FRONT = 1;
+
+    private static final int BACK = 2;
+
+    private static final int SPANNING = FRONT | BACK;
+
+    private Node root;
+
+    private Node[] stack;
+
+    private int[] stackMasks;
+
+    private int numPolygons;
 
     /**
-     * Adds the specified vector to this vector.
+     * A node of the tree: a partition plane (n.v = d), the polygons that lie
+     * in it, the subtrees in front of and behind it, and a bounding sphere
+     * around all the polygons in the subtree.
      */
-    public void add(Vector3D v) {
-        add(v.x, v.y, v.z);
+    private static class Node {
+
+        float nx, ny, nz, d;
+        Polygon3D[] polygons;
+        Node front;
+        Node back;
+        float x, y, z, radius;
+        int numSubtreePolygons;
+
+        boolean isInFront(Vector3D v) {
+            return (nx * v.x + ny * v.y + nz * v.z - d >= 0);
+        }
     }
 
     /**
-     * Subtracts the specified vector from this vector.
+     * Builds a BSP tree from the specified list of Polygon3Ds. The list is
+     * not modified, but polygons that cross a partition plane are replaced by
+     * their pieces in the tree.
      */
-    public void subtract(Vector3D v) {
-        add(-v.x, -v.y, -v.z);
+    public BSPTree(List polygons) {
+        ArrayList list = new ArrayList(polygons);
+        root = build(list);
+        if (root != null) {
+            calcBounds(root);
+        }
+        stack = new Node[getDepth(root) + 1];
+        stackMasks = new int[stack.length];
     }
 
     /**
-     * Multiplies this vector by the specified value. The new length of this
-     * vector will be length()*s.
+     * Gets the number of polygons in this tree, including split pieces.
      */
-    public void multiply(float s) {
-        x *= s;
-        y *= s;
-        z *= s;
+    public int getNumPolygons() {
+        return numPolygons;
     }
 
     /**
-     * Divides this vector by the specified value. The new length of this vector
-     * will be length()/s.
+     * Draws all the polygons in this tree with the specified renderer, in the
+     * order the renderer wants relative to its camera. Stops as soon as the
+     * renderer reports that the view is covered.
      */
-    public void divide(float s) {
-        x /= s;
-        y /= s;
-        z /= s;
+    public void draw(Graphics2D g, PolygonRenderer renderer) {
+        Transform3D camera = renderer.getCamera();
+        Vector3D eye = camera.getLocation();
+        ViewFrustum frustum = renderer.getFrustum();
+        RenderStats stats = renderer.getStats();
+        boolean frontToBack = renderer.isFrontToBack();
+        boolean firstDrawnOnTop = renderer.isFirstDrawnOnTop();
+
+        // in-order walk, near side first, skipping subtrees outside the
+        // frustum. A child is only tested against the planes its parent
+        // crosses.
+        int size = 0;
+        Node node = root;
+        int mask = ViewFrustum.ALL_PLANES;
+        while (true) {
+            while (node != null) {
+                if (mask != 0) {
+                    stats.volumesTested++;
+                    mask = frustum.testSphere(node.x, node.y, node.z,
+                            node.radius, camera, mask);
+                    if (mask == ViewFrustum.OUTSIDE) {
+                        stats.volumesCulled++;
+                        stats.polygonsCulled += node.numSubtreePolygons;
+                        break;
+                    }
+                }
+                stack[size] = node;
+                stackMasks[size] = mask;
+                size++;
+                node = (node.isInFront(eye) == frontToBack) ? node.front : node.back;
+            }
+            if (size == 0) {
+                return;
+            }
+            size--;
+            node = stack[size];
+            mask = stackMasks[size];
+            if (firstDrawnOnTop) {
+                for (int i = node.polygons.length - 1; i >= 0; i--) {
+                    renderer.draw(g, node.polygons[i]);
+                }
+            } else {
+                for (int i = 0; i < node.polygons.length; i++) {
+                    renderer.draw(g, node.polygons[i]);
+                }
+            }
+            if (renderer.isViewCovered()) {
+                return;
+            }
+            node = (node.isInFront(eye) == frontToBack) ? node.back : node.front;
+        }
+    }
+
+    private Node build(ArrayList polygons) {
+        if (polygons.isEmpty()) {
+            return null;
+        }
+
+        Node node = new Node();
+        Polygon3D splitter = chooseSplitter(polygons);
+        Vector3D n = splitter.getNormal();
+        node.nx = n.x;
+        node.ny = n.y;
+        node.nz = n.z;
+        node.d = n.getDotProduct(splitter.getVertex(0));
+
+        ArrayList coplanar = new ArrayList();
+        ArrayList front = new ArrayList();
+        ArrayList back = new ArrayList();
+        for (int i = 0; i < polygons.size(); i++) {
+            Polygon3D poly = (Polygon3D) polygons.get(i);
+            switch (classify(node, poly)) {
+                case FRONT:
+                    front.add(poly);
+                    break;
+                case BACK:
+                    back.add(poly);
+                    break;
+                case SPANNING:
+                    split(node, poly, front, back);
+                    break;
+                default:
+                    coplanar.add(poly);
+                    break;
+            }
+        }
+        node.polygons = (Polygon3D[]) coplanar.toArray(new Polygon3D[coplanar.size()]);
+        numPolygons += node.polygons.length;
+
+        // free the lists before recursing
+        polygons.clear();
+        node.front = build(front);
+        node.back = build(back);
+        return node;
     }
 
     /**
-     * Returns the length of this vector as a float.
+     * Chooses the polygon whose plane splits the fewest other polygons while
+     * keeping the two sides balanced, out of a few candidates.
      */
-    public float length() {
-        return (float) Math.sqrt(x * x + y * y + z * z);
+    private Polygon3D chooseSplitter(ArrayList polygons) {
+        int size = polygons.size();
+        int step = Math.max(1, size / NUM_CANDIDATES);
+        Node plane = new Node();
+        Polygon3D best = null;
+        int bestScore = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i += step) {
+            Polygon3D candidate = (Polygon3D) polygons.get(i);
+            Vector3D n = candidate.getNormal();
+            plane.nx = n.x;
+            plane.ny = n.y;
+            plane.nz = n.z;
+            plane.d = n.getDotProduct(candidate.getVertex(0));
+
+            int numFront = 0;
+            int numBack = 0;
+            int numSplits = 0;
+            for (int j = 0; j < size; j++) {
+                int side = classify(plane, (Polygon3D) polygons.get(j));
+                if (side == FRONT) {
+                    numFront++;
+                } else if (side == BACK) {
+                    numBack++;
+                } else if (side == SPANNING) {
+                    numSplits++;
+                }
+            }
+            int score = numSplits * 8 + Math.abs(numFront - numBack);
+            if (score < bestScore) {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+        return best;
     }
 
     /**
-     * Converts this Vector3D to a unit vector, or in other words, a vector of
-     * length 1. Same as calling v.divide(v.length()).
+     * Returns FRONT, BACK, or SPANNING depending on where the polygon lies
+     * relative to the node's plane, or 0 if it lies in the plane.
      */
-    public void normalize() {
-        divide(length());
+    private static int classify(Node plane, Polygon3D poly) {
+        int side = 0;
+        for (int i = 0; i < poly.getNumVertices(); i++) {
+            float dist = distance(plane, poly.getVertex(i));
+            if (dist > EPSILON) {
+                side |= FRONT;
+            } else if (dist < -EPSILON) {
+                side |= BACK;
+            }
+        }
+        return side;
+    }
+
+    private static float distance(Node plane, Vector3D v) {
+        return plane.nx * v.x + plane.ny * v.y + plane.nz * v.z - plane.d;
     }
 
     /**
-     * Converts this Vector3D to a String representation.
+     * Splits a convex polygon along the node's plane, adding the front piece
+     * to the front list and the back piece to the back list.
      */
-    public String toString() {
-        return "(" + x + ", " + y + ", " + z + ")";
+    private static void split(Node plane, Polygon3D poly, List front, List back) {
+        int numVertices = poly.getNumVertices();
+        ArrayList frontVertices = new ArrayList();
+        ArrayList backVertices = new ArrayList();
+        for (int i = 0; i < numVertices; i++) {
+            Vector3D v1 = poly.getVertex(i);
+            Vector3D v2 = poly.getVertex((i + 1) % numVertices);
+            float d1 = distance(plane, v1);
+            float d2 = distance(plane, v2);
+            if (d1 >= -EPSILON) {
+                frontVertices.add(new Vector3D(v1));
+            }
+            if (d1 <= EPSILON) {
+                backVertices.add(new Vector3D(v1));
+            }
+            if ((d1 > EPSILON && d2 < -EPSILON) || (d1 < -EPSILON && d2 > EPSILON)) {
+                float scale = d1 / (d1 - d2);
+                Vector3D v = new Vector3D(v1.x + scale * (v2.x - v1.x),
+                        v1.y + scale * (v2.y - v1.y),
+                        v1.z + scale * (v2.z - v1.z));
+                frontVertices.add(v);
+                backVertices.add(new Vector3D(v));
+            }
+        }
+        if (frontVertices.size() >= 3) {
+            front.add(createPiece(poly, frontVertices));
+        }
+        if (backVertices.size() >= 3) {
+            back.add(createPiece(poly, backVertices));
+        }
     }
 
     /**
-     * Rotate this vector around the x axis the specified amount. The specified
-     * angle is in radians. Use Math.toRadians() to convert from degrees to
-     * radians.
+     * Creates a piece of a split polygon with the same type, color, and
+     * normal as the original.
      */
-    public void rotateX(float angle) {
-        rotateX((float) Math.cos(angle), (float) Math.sin(angle));
+    private static Polygon3D createPiece(Polygon3D poly, ArrayList vertices) {
+        Vector3D[] v = (Vector3D[]) vertices.toArray(new Vector3D[vertices.size()]);
+        Polygon3D piece;
+        if (poly instanceof SolidPolygon3D) {
+            SolidPolygon3D solid = new SolidPolygon3D(v);
+            solid.setColor(((SolidPolygon3D) poly).getColor());
+            piece = solid;
+        } else {
+            piece = new Polygon3D(v);
+        }
+        // thin pieces can have collinear first vertices
+        piece.setNormal(poly.getNormal());
+        return piece;
     }
 
     /**
-     * Rotate this vector around the y axis the specified amount. The specified
-     * angle is in radians. Use Math.toRadians() to convert from degrees to
-     * radians.
+     * Calculates the bounding spheres of the specified subtree. Returns the
+     * bounding box of the subtree as {minX, minY, minZ, maxX, maxY, maxZ}.
      */
-    public void rotateY(float angle) {
-        rotateY((float) Math.cos(angle), (float) Math.sin(angle));
+    private static float[] calcBounds(Node node) {
+        float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+            -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        node.numSubtreePolygons = node.polygons.length;
+        for (int i = 0; i < node.polygons.length; i++) {
+            Polygon3D poly = node.polygons[i];
+            for (int j = 0; j < poly.getNumVertices(); j++) {
+                Vector3D v = poly.getVertex(j);
+                box[0] = Math.min(box[0], v.x);
+                box[1] = Math.min(box[1], v.y);
+                box[2] = Math.min(box[2], v.z);
+                box[3] = Math.max(box[3], v.x);
+                box[4] = Math.max(box[4], v.y);
+                box[5] = Math.max(box[5], v.z);
+            }
+        }
+        Node[] children = {node.front, node.back};
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                float[] childBox = calcBounds(children[i]);
+                for (int j = 0; j < 3; j++) {
+                    box[j] = Math.min(box[j], childBox[j]);
+                    box[j + 3] = Math.max(box[j + 3], childBox[j + 3]);
+                }
+                node.numSubtreePolygons += children[i].numSubtreePolygons;
+            }
+        }
+        float dx = (box[3] - box[0]) / 2;
+        float dy = (box[4] - box[1]) / 2;
+        float dz = (box[5] - box[2]) / 2;
+        node.x = box[0] + dx;
+        node.y = box[1] + dy;
+        node.z = box[2] + dz;
+        node.radius = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return box;
+    }
+
+    private static int getDepth(Node node) {
+        if (node == null) {
+            return 0;
+        }
+        return 1 + Math.max(getDepth(node.front), getDepth(node.back));
     }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The ViewWindow class represents the geometry of a view window for 3D viewing.
+ */
+class ViewWindow {
+
+    private Rectangle bounds;
+
+    private float angle;
+
+    private float distanceToCamera;
+
+    private int version;
 
     /**
-     * Rotate this vector around the z axis the specified amount. The specified
-     * angle is in radians. Use Math.toRadians() to convert from degrees to
-     * radians.
+     * Creates a new ViewWindow with the specified bounds on the screen and
+     * horizontal view angle.
      */
-    public void rotateZ(float angle) {
-        rotateZ((float) Math.cos(angle), (float) Math.sin(angle));
+    public ViewWindow(int left, int top, int width, int height, float angle) {
+        bounds = new Rectangle();
+        this.angle = angle;
+        setBounds(left, top, width, height);
     }
 
     /**
-     * Rotate this vector around the x axis the specified amount, using
-     * pre-computed cosine and sine values of the angle to rotate.
+     * Sets the bounds for this ViewWindow on the screen.
      */
-    public void rotateX(float cosAngle, float sinAngle) {
-        float newY = y * cosAngle - z * sinAngle;
-        float newZ = y * sinAngle + z * cosAngle;
-        y = newY;
-        z = newZ;
+    public void setBounds(int left, int top, int width, int height) {
+        bounds.x = left;
+        bounds.y = top;
+        bounds.width = width;
+        bounds.height = height;
+        distanceToCamera = (bounds.width / 2) / (float) Math.tan(angle / 2);
+        version++;
     }
 
     /**
-     * Rotate this vector around the y axis the specified amount, using
-     * pre-computed cosine and sine values of the angle to rotate.
+     * Sets the horizontal view angle for this ViewWindow.
      */
-    public void rotateY(float cosAngle, float sinAngle) {
-        float newX = z * sinAngle + x * cosAngle;
-        float newZ = z * cosAngle - x * sinAngle;
-        x = newX;
-        z = newZ;
+    public void setAngle(float angle) {
+        this.angle = angle;
+        distanceToCamera = (bounds.width / 2) / (float) Math.tan(angle / 2);
+        version++;
     }
 
     /**
-     * Rotate this vector around the y axis the specified amount, using
-     * pre-computed cosine and sine values of the angle to rotate.
+     * Gets a number that changes whenever the bounds or the angle of this
+     * view window change.
      */
-    public void rotateZ(float cosAngle, float sinAngle) {
-        float newX = x * cosAngle - y * sinAngle;
-        float newY = x * sinAngle + y * cosAngle;
-        x = newX;
-        y = newY;
+    public int getVersion() {
+        return version;
     }
 
     /**
-     * Adds the specified transform to this vector. This vector is first
-     * rotated, then translated.
+     * Gets the horizontal view angle of this view window.
      */
-    public void add(Transform3D xform) {
-
-        // rotate
-        addRotation(xform);
-
-        // translate
-        add(xform.getLocation());
+    public float getAngle() {
+        return angle;
     }
 
     /**
-     * Subtracts the specified transform to this vector. This vector translated,
-     * then rotated.
+     * Gets the width of this view window.
      */
-    public void subtract(Transform3D xform) {
-
-        // translate
-        subtract(xform.getLocation());
-
-        // rotate
-        subtractRotation(xform);
+    public int getWidth() {
+        return bounds.width;
     }
 
     /**
-     * Rotates this vector with the angle of the specified transform.
+     * Gets the height of this view window.
      */
-    public void addRotation(Transform3D xform) {
-        rotateX(xform.getCosAngleX(), xform.getSinAngleX());
-        rotateZ(xform.getCosAngleZ(), xform.getSinAngleZ());
-        rotateY(xform.getCosAngleY(), xform.getSinAngleY());
+    public int getHeight() {
+        return bounds.height;
     }
 
     /**
-     * Rotates this vector with the opposite angle of the specified transform.
+     * Gets the y offset of this view window on the screen.
      */
-    public void subtractRotation(Transform3D xform) {
-        // note that sin(-x) == -sin(x) and cos(-x) == cos(x)
-        rotateY(xform.getCosAngleY(), -xform.getSinAngleY());
-        rotateZ(xform.getCosAngleZ(), -xform.getSinAngleZ());
-        rotateX(xform.getCosAngleX(), -xform.getSinAngleX());
+    public int getTopOffset() {
+        return bounds.y;
     }
 
     /**
-     * Returns the dot product of this vector and the specified vector.
+     * Gets the x offset of this view window on the screen.
      */
-    public float getDotProduct(Vector3D v) {
-        return x * v.x + y * v.y + z * v.z;
+    public int getLeftOffset() {
+        return bounds.x;
     }
 
     /**
-     * Sets this vector to the cross product of the two specified vectors.
-     * Either of the specified vectors can be this vector.
+     * Gets the distance from the camera to to this view window.
      */
-    public void setToCrossProduct(Vector3D u, Vector3D v) {
-        // assign to local vars first in case u or v is 'this'
-        float x = u.y * v.z - u.z * v.y;
-        float y = u.z * v.x - u.x * v.z;
-        float z = u.x * v.y - u.y * v.x;
-        this.x = x;
-        this.y = y;
-        this.z = z;
+    public float getDistance() {
+        return distanceToCamera;
     }
 
-}
-//-----------------------------------------------------------------
-
-/**
- * The Polygon3D class represents a polygon as a series of vertices.
- */
-class Polygon3D implements Transformable {
-
-    // temporary vectors used for calculation
-    private static Vector3D temp1 = new Vector3D();
-
-    private static Vector3D temp2 = new Vector3D();
-
-    private Vector3D[] v;
-
-    private int numVertices;
-
-    private Vector3D normal;
-
     /**
-     * Creates an empty polygon that can be used as a "scratch" polygon for
-     * transforms, projections, etc.
+     * Converts an x coordinate on this view window to the corresponding x
+     * coordinate on the screen.
      */
-    public Polygon3D() {
-        numVertices = 0;
-        v = new Vector3D[0];
-        normal = new Vector3D();
+    public float convertFromViewXToScreenX(float x) {
+        return x + bounds.x + bounds.width / 2;
     }
 
     /**
-     * Creates a new Polygon3D with the specified vertices.
+     * Converts a y coordinate on this view window to the corresponding y
+     * coordinate on the screen.
      */
-    public Polygon3D(Vector3D v0, Vector3D v1, Vector3D v2) {
-        this(new Vector3D[]{v0, v1, v2});
+    public float convertFromViewYToScreenY(float y) {
+        return -y + bounds.y + bounds.height / 2;
     }
 
     /**
-     * Creates a new Polygon3D with the specified vertices. All the vertices are
-     * assumed to be in the same plane.
+     * Converts an x coordinate on the screen to the corresponding x coordinate
+     * on this view window.
      */
-    public Polygon3D(Vector3D v0, Vector3D v1, Vector3D v2, Vector3D v3) {
-        this(new Vector3D[]{v0, v1, v2, v3});
+    public float convertFromScreenXToViewX(float x) {
+        return x - bounds.x - bounds.width / 2;
     }
 
     /**
-     * Creates a new Polygon3D with the specified vertices. All the vertices are
-     * assumed to be in the same plane.
+     * Converts an y coordinate on the screen to the corresponding y coordinate
+     * on this view window.
      */
-    public Polygon3D(Vector3D[] vertices) {
-        this.v = vertices;
-        numVertices = vertices.length;
-        calcNormal();
+    public float convertFromScreenYToViewY(float y) {
+        return -y + bounds.y + bounds.height / 2;
     }
 
     /**
-     * Sets this polygon to the same vertices as the specfied polygon.
+     * Projects the specified vector to the screen.
      */
-    public void setTo(Polygon3D polygon) {
-        numVertices = polygon.numVertices;
-        normal.setTo(polygon.normal);
+    public void project(Vector3D v) {
+        // project to view window
+        v.x = distanceToCamera * v.x / -v.z;
+        v.y = distanceToCamera * v.y / -v.z;
 
-        ensureCapacity(numVertices);
-        for (int i = 0; i < numVertices; i++) {
-            v[i].setTo(polygon.v[i]);
-        }
+        // convert to screen coordinates
+        v.x = convertFromViewXToScreenX(v.x);
+        v.y = convertFromViewYToScreenY(v.y);
     }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The ViewFrustum class holds the six planes that bound what a ViewWindow can
+ * see, in camera space: the near plane (the z = -1 clip plane), the far plane,
+ * and the four planes through the camera and the edges of the view window.
+ * Bounding spheres are tested against the planes so whole groups of polygons
+ * can be rejected before any of their vertices are transformed.
+ * <p>
+ * Polygons are clipped against a second set of planes, the same except that
+ * the side planes are moved out by a guard band of a few pixels. Polygons
+ * that only stick out of the view a little are left for the ScanConverter to
+ * trim, which is cheaper than clipping them.
+ */
+class ViewFrustum {
 
     /**
-     * Ensures this polgon has enough capacity to hold the specified number of
-     * vertices.
+     * Returned by testSphere() when the sphere is completely outside.
      */
-    protected void ensureCapacity(int length) {
-        if (v.length < length) {
-            Vector3D[] newV = new Vector3D[length];
-            System.arraycopy(v, 0, newV, 0, v.length);
-            for (int i = v.length; i < newV.length; i++) {
-                newV[i] = new Vector3D();
-            }
-            v = newV;
-        }
-    }
+    public static final int OUTSIDE = -1;
 
     /**
-     * Gets the number of vertices this polygon has.
+     * The plane mask to start a hierarchical test with.
      */
-    public int getNumVertices() {
-        return numVertices;
-    }
+    public static final int ALL_PLANES = (1 << 6) - 1;
+
+    public static final int NUM_PLANES = 6;
+
+    public static final int DEFAULT_GUARD_BAND = 16;
+
+    private static final float NEAR_Z = -1;
+
+    private ViewWindow view;
+
+    private float farDistance;
+
+    private int guardBand = DEFAULT_GUARD_BAND;
+
+    // the planes polygons are clipped against, with the guard band
+    private Vector3D[] clipNormal = new Vector3D[NUM_PLANES];
+
+    private float[] clipDistance = new float[NUM_PLANES];
+
+    // plane i is the set of points p where n.p - d = 0; inside is positive
+    private float[] nx = new float[NUM_PLANES];
+
+    private float[] ny = new float[NUM_PLANES];
+
+    private float[] nz = new float[NUM_PLANES];
+
+    private float[] d = new float[NUM_PLANES];
+
+    private int width = -1;
+
+    private int height = -1;
+
+    private float distance = -1;
+
+    private Vector3D center = new Vector3D();
 
     /**
-     * Gets the vertex at the specified index.
+     * Creates a new ViewFrustum for the specified view window, with no far
+     * plane.
      */
-    public Vector3D getVertex(int index) {
-        return v[index];
+    public ViewFrustum(ViewWindow view) {
+        this(view, Float.MAX_VALUE);
     }
 
     /**
-     * Projects this polygon onto the view window.
+     * Creates a new ViewFrustum for the specified view window and far plane
+     * distance.
      */
-    public void project(ViewWindow view) {
-        for (int i = 0; i < numVertices; i++) {
-            view.project(v[i]);
+    public ViewFrustum(ViewWindow view, float farDistance) {
+        this.view = view;
+        this.farDistance = farDistance;
+        for (int i = 0; i < NUM_PLANES; i++) {
+            clipNormal[i] = new Vector3D();
         }
+        update();
     }
 
-    // methods from the Transformable interface.
-    public void add(Vector3D u) {
-        for (int i = 0; i < numVertices; i++) {
-            v[i].add(u);
-        }
+    /**
+     * Gets the view window this frustum bounds.
+     */
+    public ViewWindow getViewWindow() {
+        return view;
     }
 
-    public void subtract(Vector3D u) {
-        for (int i = 0; i < numVertices; i++) {
-            v[i].subtract(u);
-        }
+    /**
+     * Sets how many pixels outside the view window polygons may reach before
+     * they are clipped against the side planes.
+     */
+    public void setGuardBand(int pixels) {
+        guardBand = Math.max(0, pixels);
+        distance = -1;
+        update();
     }
 
-    public void add(Transform3D xform) {
-        addRotation(xform);
-        add(xform.getLocation());
+    public int getGuardBand() {
+        return guardBand;
     }
 
-    public void subtract(Transform3D xform) {
-        subtract(xform.getLocation());
-        subtractRotation(xform);
+    /**
+     * Sets the distance from the camera to the far plane.
+     */
+    public void setFarDistance(float farDistance) {
+        this.farDistance = farDistance;
+        distance = -1;
+        update();
     }
 
-    public void addRotation(Transform3D xform) {
-        for (int i = 0; i < numVertices; i++) {
-            v[i].addRotation(xform);
+    /**
+     * Recalculates the planes if the view window has changed.
+     */
+    public void update() {
+        if (view.getWidth() == width && view.getHeight() == height
+                && view.getDistance() == distance) {
+            return;
         }
-        normal.addRotation(xform);
+        width = view.getWidth();
+        height = view.getHeight();
+        distance = view.getDistance();
+
+        // allow a pixel of slack for rounding in the screen conversion
+        float halfWidth = width / 2f + 1;
+        float halfHeight = height / 2f + 1;
+        setPlane(0, 0, 0, -1, -NEAR_Z);
+        setPlane(1, 0, 0, 1, -farDistance);
+        setPlane(2, distance, 0, -halfWidth, 0);
+        setPlane(3, -distance, 0, -halfWidth, 0);
+        setPlane(4, 0, -distance, -halfHeight, 0);
+        setPlane(5, 0, distance, -halfHeight, 0);
+
+        float clipHalfWidth = halfWidth + guardBand;
+        float clipHalfHeight = halfHeight + guardBand;
+        setClipPlane(0, 0, 0, -1, -NEAR_Z);
+        setClipPlane(1, 0, 0, 1, -farDistance);
+        setClipPlane(2, distance, 0, -clipHalfWidth, 0);
+        setClipPlane(3, -distance, 0, -clipHalfWidth, 0);
+        setClipPlane(4, 0, -distance, -clipHalfHeight, 0);
+        setClipPlane(5, 0, distance, -clipHalfHeight, 0);
+    }
+
+    private void setPlane(int i, float x, float y, float z, float dist) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        nx[i] = x / length;
+        ny[i] = y / length;
+        nz[i] = z / length;
+        d[i] = dist / length;
+    }
+
+    private void setClipPlane(int i, float x, float y, float z, float dist) {
+        // not normalized; clipping only needs the sign and ratio of distances
+        clipNormal[i].setTo(x, y, z);
+        clipDistance[i] = dist;
     }
 
-    public void subtractRotation(Transform3D xform) {
-        for (int i = 0; i < numVertices; i++) {
-            v[i].subtractRotation(xform);
-        }
-        normal.subtractRotation(xform);
+    /**
+     * Gets the normal of the specified clip plane, pointing inside. A point
+     * p is inside the plane when normal.p - distance >= 0.
+     */
+    public Vector3D getClipNormal(int plane) {
+        return clipNormal[plane];
     }
 
     /**
-     * Calculates the unit-vector normal of this polygon. This method uses the
-     * first, second, and third vertices to calcuate the normal, so if these
-     * vertices are collinear, this method will not work. In this case, you can
-     * get the normal from the bounding rectangle. Use setNormal() to explicitly
-     * set the normal. This method uses static objects in the Polygon3D class
-     * for calculations, so this method is not thread-safe across all instances
-     * of Polygon3D.
+     * Gets the distance of the specified clip plane along its normal.
      */
-    public Vector3D calcNormal() {
-        if (normal == null) {
-            normal = new Vector3D();
-        }
-        temp1.setTo(v[2]);
-        temp1.subtract(v[1]);
-        temp2.setTo(v[0]);
-        temp2.subtract(v[1]);
-        normal.setToCrossProduct(temp1, temp2);
-        normal.normalize();
-        return normal;
+    public float getClipDistance(int plane) {
+        return clipDistance[plane];
     }
 
     /**
-     * Gets the normal of this polygon. Use calcNormal() if any vertices have
-     * changed.
+     * Tests if a point on the screen is outside the guard band around the
+     * view window, that is, if a polygon with that vertex needs clipping
+     * against the side planes.
      */
-    public Vector3D getNormal() {
-        return normal;
+    public boolean isOutsideGuardBand(float screenX, float screenY) {
+        float left = view.getLeftOffset() - 1 - guardBand;
+        float top = view.getTopOffset() - 1 - guardBand;
+        return (screenX < left || screenX > left + width + 2 + 2 * guardBand
+                || screenY < top || screenY > top + height + 2 + 2 * guardBand);
     }
 
     /**
-     * Sets the normal of this polygon.
+     * Tests a bounding sphere, given in camera space, against the planes in
+     * planeMask. Returns OUTSIDE if the sphere is completely outside one of
+     * the planes, otherwise returns the mask of planes the sphere crosses.
+     * Children of a bounding volume only need to be tested against the planes
+     * their parent crosses, so a result of 0 means the sphere is completely
+     * inside.
      */
-    public void setNormal(Vector3D n) {
-        if (normal == null) {
-            normal = new Vector3D(n);
-        } else {
-            normal.setTo(n);
+    public int testSphere(Vector3D center, float radius, int planeMask) {
+        int mask = 0;
+        for (int i = 0; i < NUM_PLANES; i++) {
+            int bit = 1 << i;
+            if ((planeMask & bit) != 0) {
+                float dist = nx[i] * center.x + ny[i] * center.y
+                        + nz[i] * center.z - d[i];
+                if (dist < -radius) {
+                    return OUTSIDE;
+                } else if (dist < radius) {
+                    mask |= bit;
+                }
+            }
         }
+        return mask;
     }
 
     /**
-     * Tests if this polygon is facing the specified location. This method uses
-     * static objects in the Polygon3D class for calculations, so this method is
-     * not thread-safe across all instances of Polygon3D.
+     * Tests a bounding sphere, given in world space, against the planes in
+     * planeMask. The center is transformed to the camera space of the
+     * specified camera first.
      */
-    public boolean isFacing(Vector3D u) {
-        temp1.setTo(u);
-        temp1.subtract(v[0]);
-        return (normal.getDotProduct(temp1) >= 0);
+    public int testSphere(float x, float y, float z, float radius,
+            Transform3D camera, int planeMask) {
+        center.setTo(x, y, z);
+        center.subtract(camera);
+        return testSphere(center, radius, planeMask);
+    }
+}
+//-----------------------------------------------------------------
+
+/**
+ * The BoundingVolumeTree class groups a set of static polygons into a
+ * hierarchy of bounding spheres. Subtrees whose sphere is outside the view
+ * frustum are skipped without transforming any of their polygons.
+ * <p>
+ * Renderers that paint over the screen get the visible polygons in their
+ * original list order, so the image is the same as drawing the whole list.
+ * Front-to-back renderers get them nearest subtree first.
+ */
+class BoundingVolumeTree {
+
+    private static final int MAX_LEAF_SIZE = 8;
+
+    private Polygon3D[] polygons;
+
+    private Entry[] entries;
+
+    private Node root;
+
+    private int[] visible;
+
+    private int numVisible;
+
+    private static class Node {
+
+        float x, y, z, radius;
+        int start, end;
+        Node left;
+        Node right;
     }
 
     /**
-     * Clips this polygon so that all vertices are in front of the clip plane,
-     * clipZ (in other words, all vertices have z <= clipZ). The value of clipZ
-     * should not be 0, as this causes divide-by-zero problems. Returns true if
-     * the polygon is at least partially in front of the clip plane.
+     * A polygon, its index in the original list, and its centroid.
      */
-    public boolean clip(float clipZ) {
-        ensureCapacity(numVertices * 3);
+    private static class Entry {
 
-        boolean isCompletelyHidden = true;
+        int index;
+        float x, y, z;
+    }
 
-        // insert vertices so all edges are either completly
-        // in front or behind the clip plane
-        for (int i = 0; i < numVertices; i++) {
-            int next = (i + 1) % numVertices;
-            Vector3D v1 = v[i];
-            Vector3D v2 = v[next];
-            if (v1.z < clipZ) {
-                isCompletelyHidden = false;
-            }
-            // ensure v1.z < v2.z
-            if (v1.z > v2.z) {
-                Vector3D temp = v1;
-                v1 = v2;
-                v2 = temp;
+    private static final Comparator[] AXIS_ORDER = {
+        new Comparator() {
+            public int compare(Object a, Object b) {
+                return Float.compare(((Entry) a).x, ((Entry) b).x);
+            }
+        },
+        new Comparator() {
+            public int compare(Object a, Object b) {
+                return Float.compare(((Entry) a).y, ((Entry) b).y);
+            }
+        },
+        new Comparator() {
+            public int compare(Object a, Object b) {
+                return Float.compare(((Entry) a).z, ((Entry) b).z);
             }
-            if (v1.z < clipZ && v2.z > clipZ) {
-                float scale = (clipZ - v1.z) / (v2.z - v1.z);
-                insertVertex(next, v1.x + scale * (v2.x - v1.x), v1.y + scale
-                        * (v2.y - v1.y), clipZ);
-                // skip the vertex we just created
-                i++;
+        },};
+
+    /**
+     * Builds a BoundingVolumeTree from the specified list of Polygon3Ds.
+     */
+    public BoundingVolumeTree(List polygons) {
+        int size = polygons.size();
+        this.polygons = (Polygon3D[]) polygons.toArray(new Polygon3D[size]);
+        entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            Polygon3D poly = this.polygons[i];
+            Entry entry = new Entry();
+            entry.index = i;
+            for (int j = 0; j < poly.getNumVertices(); j++) {
+                Vector3D v = poly.getVertex(j);
+                entry.x += v.x;
+                entry.y += v.y;
+                entry.z += v.z;
             }
+            entry.x /= poly.getNumVertices();
+            entry.y /= poly.getNumVertices();
+            entry.z /= poly.getNumVertices();
+            entries[i] = entry;
+        }
+        visible = new int[size];
+        if (size > 0) {
+            root = build(0, size);
         }
+    }
 
-        if (isCompletelyHidden) {
-            return false;
+    private Node build(int start, int end) {
+        Node node = new Node();
+        node.start = start;
+        node.end = end;
+
+        // bounding box of the vertices and of the centroids
+        float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+            -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        float[] centroids = box.clone();
+        for (int i = start; i < end; i++) {
+            Entry entry = entries[i];
+            grow(centroids, entry.x, entry.y, entry.z);
+            Polygon3D poly = polygons[entry.index];
+            for (int j = 0; j < poly.getNumVertices(); j++) {
+                Vector3D v = poly.getVertex(j);
+                grow(box, v.x, v.y, v.z);
+            }
         }
 
-        // delete all vertices that have z > clipZ
-        for (int i = numVertices - 1; i >= 0; i--) {
-            if (v[i].z > clipZ) {
-                deleteVertex(i);
+        // bounding sphere around the center of the box
+        node.x = (box[0] + box[3]) / 2;
+        node.y = (box[1] + box[4]) / 2;
+        node.z = (box[2] + box[5]) / 2;
+        float radiusSq = 0;
+        for (int i = start; i < end; i++) {
+            Polygon3D poly = polygons[entries[i].index];
+            for (int j = 0; j < poly.getNumVertices(); j++) {
+                Vector3D v = poly.getVertex(j);
+                float dx = v.x - node.x;
+                float dy = v.y - node.y;
+                float dz = v.z - node.z;
+                radiusSq = Math.max(radiusSq, dx * dx + dy * dy + dz * dz);
             }
         }
+        node.radius = (float) Math.sqrt(radiusSq);
+
+        if (end - start > MAX_LEAF_SIZE) {
+            // split at the median along the longest axis of the centroids
+            int axis = 0;
+            float extent = centroids[3] - centroids[0];
+            for (int i = 1; i < 3; i++) {
+                if (centroids[3 + i] - centroids[i] > extent) {
+                    extent = centroids[3 + i] - centroids[i];
+                    axis = i;
+                }
+            }
+            Arrays.sort(entries, start, end, AXIS_ORDER[axis]);
+            int middle = (start + end) / 2;
+            node.left = build(start, middle);
+            node.right = build(middle, end);
+        }
+        return node;
+    }
 
-        return (numVertices >= 3);
+    private static void grow(float[] box, float x, float y, float z) {
+        box[0] = Math.min(box[0], x);
+        box[1] = Math.min(box[1], y);
+        box[2] = Math.min(box[2], z);
+        box[3] = Math.max(box[3], x);
+        box[4] = Math.max(box[4], y);
+        box[5] = Math.max(box[5], z);
     }
 
     /**
-     * Inserts a new vertex at the specified index.
+     * Draws the polygons in this tree that may be visible with the specified
+     * renderer. The leaves are only roughly in front-to-back order, and a
+     * detail can be in a different leaf from the polygon it is on, so
+     * renderers where the first polygon drawn stays on top get the visible
+     * polygons in reverse list order instead.
      */
-    protected void insertVertex(int index, float x, float y, float z) {
-        Vector3D newVertex = v[v.length - 1];
-        newVertex.x = x;
-        newVertex.y = y;
-        newVertex.z = z;
-        for (int i = v.length - 1; i > index; i--) {
-            v[i] = v[i - 1];
+    public void draw(Graphics2D g, PolygonRenderer renderer) {
+        if (root == null) {
+            return;
+        }
+        numVisible = 0;
+        boolean firstDrawnOnTop = renderer.isFirstDrawnOnTop();
+        boolean frontToBack = renderer.isFrontToBack() && !firstDrawnOnTop;
+        cull(g, renderer, root, ViewFrustum.ALL_PLANES, frontToBack);
+        if (!frontToBack) {
+            Arrays.sort(visible, 0, numVisible);
+            if (firstDrawnOnTop) {
+                for (int i = numVisible - 1; i >= 0; i--) {
+                    renderer.draw(g, polygons[visible[i]]);
+                }
+            } else {
+                for (int i = 0; i < numVisible; i++) {
+                    renderer.draw(g, polygons[visible[i]]);
+                }
+            }
         }
-        v[index] = newVertex;
-        numVertices++;
     }
 
     /**
-     * Delete the vertex at the specified index.
+     * Culls the specified subtree. Visible polygons are drawn right away in
+     * front-to-back mode, and collected otherwise. Returns false if drawing
+     * should stop because the view is covered.
      */
-    protected void deleteVertex(int index) {
-        Vector3D deleted = v[index];
-        for (int i = index; i < v.length - 1; i++) {
-            v[i] = v[i + 1];
+    private boolean cull(Graphics2D g, PolygonRenderer renderer, Node node,
+            int planeMask, boolean frontToBack) {
+        RenderStats stats = renderer.getStats();
+        if (planeMask != 0) {
+            stats.volumesTested++;
+            planeMask = renderer.getFrustum().testSphere(node.x, node.y,
+                    node.z, node.radius, renderer.getCamera(), planeMask);
+            if (planeMask == ViewFrustum.OUTSIDE) {
+                stats.volumesCulled++;
+                stats.polygonsCulled += node.end - node.start;
+                return true;
+            }
         }
-        v[v.length - 1] = deleted;
-        numVertices--;
-    }
 
-    /**
-     * Inserts a vertex into this polygon at the specified index. The exact
-     * vertex in inserted (not a copy).
-     */
-    public void insertVertex(int index, Vector3D vertex) {
-        Vector3D[] newV = new Vector3D[numVertices + 1];
-        System.arraycopy(v, 0, newV, 0, index);
-        newV[index] = vertex;
-        System.arraycopy(v, index, newV, index + 1, numVertices - index);
-        v = newV;
-        numVertices++;
+        if (node.left == null) {
+            for (int i = node.start; i < node.end; i++) {
+                if (frontToBack) {
+                    renderer.draw(g, polygons[entries[i].index]);
+                } else {
+                    visible[numVisible++] = entries[i].index;
+                }
+            }
+            return !(frontToBack && renderer.isViewCovered());
+        }
+
+        Node first = node.left;
+        Node second = node.right;
+        if (frontToBack) {
+            Vector3D eye = renderer.getCamera().getLocation();
+            if (distanceSq(second, eye) < distanceSq(first, eye)) {
+                first = node.right;
+                second = node.left;
+            }
+        }
+        return cull(g, renderer, first, planeMask, frontToBack)
+                && cull(g, renderer, second, planeMask, frontToBack);
     }
 
+    private static float distanceSq(Node node, Vector3D v) {
+        float dx = node.x - v.x;
+        float dy = node.y - v.y;
+        float dz = node.z - v.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
 }
 //-----------------------------------------------------------------
-
 /**
- * The SolidPolygon3D class is a Polygon with a color.
+ * The ChunkedWorld class draws a world that is split into a grid of square
+ * chunks on the ground (x/z) plane, each stored on disk as a SceneFile. Only
+ * the chunks around the camera are kept in memory. A background loader thread
+ * loads the chunks around the camera, and around where the camera is heading,
+ * and evicts the least recently drawn chunks when the loaded chunks go over a
+ * byte budget.
+ * <p>
+ * The render thread never waits for the loader: it asks for chunks through a
+ * lock-free queue, and a chunk that isn't loaded yet is skipped for that
+ * frame.
+ * <p>
+ * A world is a directory holding world.properties (chunkSize, originX,
+ * originZ, numChunksX and numChunksZ) and a chunk_i_j.h3d file for each chunk.
+ * Use generate() to create a test world.
  */
-class SolidPolygon3D extends Polygon3D {
-
-    private Color color = Color.GREEN;
-
-    public SolidPolygon3D() {
-        super();
-    }
+class ChunkedWorld {
 
-    public SolidPolygon3D(Vector3D v0, Vector3D v1, Vector3D v2) {
-        this(new Vector3D[]{v0, v1, v2});
-    }
-
-    public SolidPolygon3D(Vector3D v0, Vector3D v1, Vector3D v2, Vector3D v3) {
-        this(new Vector3D[]{v0, v1, v2, v3});
-    }
+    public static final String INDEX_FILE = "world.properties";
 
-    public SolidPolygon3D(Vector3D[] vertices) {
-        super(vertices);
-    }
+    private static final int UNLOADED = 0;
+    private static final int QUEUED = 1;
+    private static final int LOADED = 2;
+    private static final int FAILED = 3;
 
-    public void setTo(Polygon3D polygon) {
-        super.setTo(polygon);
-        if (polygon instanceof SolidPolygon3D) {
-            color = ((SolidPolygon3D) polygon).color;
-        }
-    }
+    // how many frames ahead to look along the direction of travel
+    private static final int PREFETCH_FRAMES = 30;
 
     /**
-     * Gets the color of this solid-colored polygon used for rendering this
-     * polygon.
+     * One chunk. The render thread only changes state from UNLOADED to
+     * QUEUED; the loader thread does every other change.
      */
-    public Color getColor() {
-        return color;
-    }
+    static class Chunk {
+        int i;
+        int j;
+        volatile int state;
+        volatile IndexedMesh mesh;
+        volatile long lastUsedFrame;
+        long bytes;
+        // bounding sphere, set before mesh is
+        float x;
+        float y;
+        float z;
+        float radius;
+
+        private File file;
+    }
+
+    private File directory;
+    private float chunkSize;
+    private float originX;
+    private float originZ;
+    private int numChunksX;
+    private int numChunksZ;
+    private Chunk[] chunks;
+    private int viewRadius;
+    private long byteBudget;
+
+    private ConcurrentLinkedQueue requests = new ConcurrentLinkedQueue();
+    private Thread loaderThread;
+    private volatile boolean running;
+
+    // chunk coordinates of the camera and of where it is heading, from the
+    // render thread, so the loader can drop requests that are out of range
+    private volatile int cameraI;
+    private volatile int cameraJ;
+    private volatile int aheadI;
+    private volatile int aheadJ;
+
+    // render thread state
+    private long frame;
+    private float lastX = Float.NaN;
+    private float lastZ;
+    private int numSkipped;
+
+    // loader thread state, published through the volatile metrics below
+    private ArrayList resident = new ArrayList();
+    private LatencyHistogram loadLatency = new LatencyHistogram();
+    private volatile int numResident;
+    private volatile long residentBytes;
+    private volatile int numLoads;
+    private volatile int version;
+    private volatile long loadLatencyP50;
+    private volatile long loadLatencyP99;
+    private volatile long loadLatencyMax;
 
     /**
-     * Sets the color of this solid-colored polygon used for rendering this
-     * polygon.
+     * Opens the world in the specified directory. Chunks up to viewRadius
+     * chunks from the camera are drawn, and loaded chunks are evicted when
+     * they use more than byteBudget bytes.
      */
-    public void setColor(Color color) {
-        this.color = color;
-    }
-
-}
-
-/**
- * The ViewWindow class represents the geometry of a view window for 3D viewing.
- */
-class ViewWindow {
-
-    private Rectangle bounds;
-
-    private float angle;
+    public ChunkedWorld(File directory, int viewRadius, long byteBudget)
+            throws IOException {
+        this.directory = directory;
+        this.viewRadius = viewRadius;
+        this.byteBudget = byteBudget;
+
+        Properties index = new Properties();
+        FileInputStream in = new FileInputStream(new File(directory, INDEX_FILE));
+        try {
+            index.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            chunkSize = Float.parseFloat(index.getProperty("chunkSize"));
+            originX = Float.parseFloat(index.getProperty("originX"));
+            originZ = Float.parseFloat(index.getProperty("originZ"));
+            numChunksX = Integer.parseInt(index.getProperty("numChunksX"));
+            numChunksZ = Integer.parseInt(index.getProperty("numChunksZ"));
+        } catch (RuntimeException ex) {
+            throw new IOException("Bad " + INDEX_FILE + " in " + directory, ex);
+        }
 
-    private float distanceToCamera;
+        chunks = new Chunk[numChunksX * numChunksZ];
+        for (int j = 0; j < numChunksZ; j++) {
+            for (int i = 0; i < numChunksX; i++) {
+                Chunk chunk = new Chunk();
+                chunk.i = i;
+                chunk.j = j;
+                chunk.file = new File(directory, "chunk_" + i + "_" + j + ".h3d");
+                chunks[j * numChunksX + i] = chunk;
+            }
+        }
+    }
 
     /**
-     * Creates a new ViewWindow with the specified bounds on the screen and
-     * horizontal view angle.
+     * Starts the loader thread.
      */
-    public ViewWindow(int left, int top, int width, int height, float angle) {
-        bounds = new Rectangle();
-        this.angle = angle;
-        setBounds(left, top, width, height);
+    public void start() {
+        running = true;
+        loaderThread = new Thread("chunk loader") {
+            public void run() {
+                loaderLoop();
+            }
+        };
+        loaderThread.setDaemon(true);
+        loaderThread.start();
     }
 
     /**
-     * Sets the bounds for this ViewWindow on the screen.
+     * Stops the loader thread after the chunk it is loading, if any.
      */
-    public void setBounds(int left, int top, int width, int height) {
-        bounds.x = left;
-        bounds.y = top;
-        bounds.width = width;
-        bounds.height = height;
-        distanceToCamera = (bounds.width / 2) / (float) Math.tan(angle / 2);
+    public void stop() {
+        running = false;
+        if (loaderThread != null) {
+            LockSupport.unpark(loaderThread);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
     }
 
     /**
-     * Sets the horizontal view angle for this ViewWindow.
+     * Gets the number of chunks in memory.
      */
-    public void setAngle(float angle) {
-        this.angle = angle;
-        distanceToCamera = (bounds.width / 2) / (float) Math.tan(angle / 2);
+    public int getNumResidentChunks() {
+        return numResident;
     }
 
     /**
-     * Gets the horizontal view angle of this view window.
+     * Gets the total size of the chunk files in memory.
      */
-    public float getAngle() {
-        return angle;
+    public long getResidentBytes() {
+        return residentBytes;
     }
 
     /**
-     * Gets the width of this view window.
+     * Gets the number of chunks loaded so far.
      */
-    public int getWidth() {
-        return bounds.width;
+    public int getNumLoads() {
+        return numLoads;
     }
 
     /**
-     * Gets the height of this view window.
+     * Gets a number that changes whenever a chunk is loaded or evicted, so
+     * what draw() draws may have changed.
      */
-    public int getHeight() {
-        return bounds.height;
+    public int getVersion() {
+        return version;
     }
 
     /**
-     * Gets the y offset of this view window on the screen.
+     * Gets the median time to load a chunk, in nanoseconds.
      */
-    public int getTopOffset() {
-        return bounds.y;
+    public long getLoadLatencyP50() {
+        return loadLatencyP50;
     }
 
     /**
-     * Gets the x offset of this view window on the screen.
+     * Gets the 99th percentile time to load a chunk, in nanoseconds.
      */
-    public int getLeftOffset() {
-        return bounds.x;
+    public long getLoadLatencyP99() {
+        return loadLatencyP99;
     }
 
     /**
-     * Gets the distance from the camera to to this view window.
+     * Gets the longest time to load a chunk, in nanoseconds.
      */
-    public float getDistance() {
-        return distanceToCamera;
+    public long getLoadLatencyMax() {
+        return loadLatencyMax;
     }
 
     /**
-     * Converts an x coordinate on this view window to the corresponding x
-     * coordinate on the screen.
+     * Gets the number of chunks in view range that were skipped in the last
+     * frame because they weren't loaded yet.
      */
-    public float convertFromViewXToScreenX(float x) {
-        return x + bounds.x + bounds.width / 2;
+    public int getNumSkipped() {
+        return numSkipped;
     }
 
     /**
-     * Converts a y coordinate on this view window to the corresponding y
-     * coordinate on the screen.
+     * Draws the loaded chunks around the renderer's camera, and asks the
+     * loader for the chunks around the camera and ahead of it. Chunks are
+     * drawn ring by ring around the camera, far to near, or near to far for
+     * front-to-back renderers.
      */
-    public float convertFromViewYToScreenY(float y) {
-        return -y + bounds.y + bounds.height / 2;
+    public void draw(Graphics2D g, PolygonRenderer renderer) {
+        frame++;
+        Vector3D location = renderer.getCamera().getLocation();
+        if (Float.isNaN(lastX)) {
+            lastX = location.x;
+            lastZ = location.z;
+        }
+        float aheadX = location.x + (location.x - lastX) * PREFETCH_FRAMES;
+        float aheadZ = location.z + (location.z - lastZ) * PREFETCH_FRAMES;
+        lastX = location.x;
+        lastZ = location.z;
+
+        int ci = getChunkI(location.x);
+        int cj = getChunkJ(location.z);
+        cameraI = ci;
+        cameraJ = cj;
+        aheadI = getChunkI(aheadX);
+        aheadJ = getChunkJ(aheadZ);
+
+        // nearest first, so the chunks that matter most load first
+        for (int ring = 0; ring <= viewRadius; ring++) {
+            requestRing(ci, cj, ring);
+        }
+        for (int ring = 0; ring <= viewRadius; ring++) {
+            requestRing(aheadI, aheadJ, ring);
+        }
+
+        numSkipped = 0;
+        boolean frontToBack = renderer.isFrontToBack();
+        for (int k = 0; k <= viewRadius; k++) {
+            int ring = frontToBack ? k : viewRadius - k;
+            for (int j = cj - ring; j <= cj + ring; j++) {
+                // the top and bottom rows of the ring, and its sides
+                int step = (j == cj - ring || j == cj + ring) ? 1 : Math.max(1, 2 * ring);
+                for (int i = ci - ring; i <= ci + ring; i += step) {
+                    drawChunk(g, renderer, getChunk(i, j));
+                }
+            }
+        }
+    }
+
+    private void drawChunk(Graphics2D g, PolygonRenderer renderer, Chunk chunk) {
+        if (chunk == null) {
+            return;
+        }
+        IndexedMesh mesh = chunk.mesh;
+        if (mesh == null) {
+            if (chunk.state != FAILED) {
+                numSkipped++;
+            }
+            return;
+        }
+        chunk.lastUsedFrame = frame;
+        RenderStats stats = renderer.getStats();
+        stats.volumesTested++;
+        if (renderer.getFrustum().testSphere(chunk.x, chunk.y, chunk.z,
+                chunk.radius, renderer.getCamera(), ViewFrustum.ALL_PLANES)
+                == ViewFrustum.OUTSIDE) {
+            stats.volumesCulled++;
+            stats.polygonsCulled += mesh.getNumPolygons();
+            return;
+        }
+        renderer.draw(g, mesh);
+    }
+
+    private void requestRing(int ci, int cj, int ring) {
+        for (int j = cj - ring; j <= cj + ring; j++) {
+            int step = (j == cj - ring || j == cj + ring) ? 1 : Math.max(1, 2 * ring);
+            for (int i = ci - ring; i <= ci + ring; i += step) {
+                Chunk chunk = getChunk(i, j);
+                if (chunk != null && chunk.state == UNLOADED) {
+                    chunk.state = QUEUED;
+                    chunk.lastUsedFrame = frame;
+                    requests.offer(chunk);
+                    LockSupport.unpark(loaderThread);
+                }
+            }
+        }
+    }
+
+    private int getChunkI(float x) {
+        return (int) Math.floor((x - originX) / chunkSize);
+    }
+
+    private int getChunkJ(float z) {
+        return (int) Math.floor((z - originZ) / chunkSize);
+    }
+
+    private Chunk getChunk(int i, int j) {
+        if (i < 0 || j < 0 || i >= numChunksX || j >= numChunksZ) {
+            return null;
+        }
+        return chunks[j * numChunksX + i];
+    }
+
+    private boolean isInRange(Chunk chunk) {
+        return (Math.abs(chunk.i - cameraI) <= viewRadius
+                && Math.abs(chunk.j - cameraJ) <= viewRadius)
+                || (Math.abs(chunk.i - aheadI) <= viewRadius
+                && Math.abs(chunk.j - aheadJ) <= viewRadius);
+    }
+
+    private void loaderLoop() {
+        while (running) {
+            Chunk chunk = (Chunk) requests.poll();
+            if (chunk == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            if (!isInRange(chunk)) {
+                // the camera moved on before the chunk was loaded
+                chunk.state = UNLOADED;
+                continue;
+            }
+            load(chunk);
+            evict(chunk);
+        }
+    }
+
+    private void load(Chunk chunk) {
+        long startTime = System.nanoTime();
+        IndexedMesh mesh;
+        try {
+            mesh = SceneFile.load(chunk.file);
+        } catch (IOException ex) {
+            // don't ask for it again
+            System.err.println("Couldn't load chunk: " + ex);
+            chunk.state = FAILED;
+            return;
+        }
+        calcBounds(chunk, mesh);
+        chunk.bytes = chunk.file.length();
+        chunk.mesh = mesh;
+        chunk.state = LOADED;
+
+        resident.add(chunk);
+        numResident = resident.size();
+        residentBytes += chunk.bytes;
+        numLoads++;
+        version++;
+        loadLatency.record(System.nanoTime() - startTime);
+        loadLatencyP50 = loadLatency.getValueAtPercentile(50);
+        loadLatencyP99 = loadLatency.getValueAtPercentile(99);
+        loadLatencyMax = loadLatency.getMax();
     }
 
     /**
-     * Converts an x coordinate on the screen to the corresponding x coordinate
-     * on this view window.
+     * Evicts the least recently drawn chunks, other than the one just loaded,
+     * until the loaded chunks fit the byte budget.
      */
-    public float convertFromScreenXToViewX(float x) {
-        return x - bounds.x - bounds.width / 2;
+    private void evict(Chunk loaded) {
+        while (residentBytes > byteBudget && resident.size() > 1) {
+            int oldest = -1;
+            for (int k = 0; k < resident.size(); k++) {
+                Chunk chunk = (Chunk) resident.get(k);
+                if (chunk != loaded && (oldest < 0 || chunk.lastUsedFrame
+                        < ((Chunk) resident.get(oldest)).lastUsedFrame)) {
+                    oldest = k;
+                }
+            }
+            Chunk chunk = (Chunk) resident.remove(oldest);
+            chunk.mesh = null;
+            chunk.state = UNLOADED;
+            residentBytes -= chunk.bytes;
+            numResident = resident.size();
+            version++;
+        }
+    }
+
+    private static void calcBounds(Chunk chunk, IndexedMesh mesh) {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < mesh.numVertices; i++) {
+            minX = Math.min(minX, mesh.x[i]);
+            minY = Math.min(minY, mesh.y[i]);
+            minZ = Math.min(minZ, mesh.z[i]);
+            maxX = Math.max(maxX, mesh.x[i]);
+            maxY = Math.max(maxY, mesh.y[i]);
+            maxZ = Math.max(maxZ, mesh.z[i]);
+        }
+        chunk.x = (minX + maxX) / 2;
+        chunk.y = (minY + maxY) / 2;
+        chunk.z = (minZ + maxZ) / 2;
+        float dx = maxX - minX;
+        float dy = maxY - minY;
+        float dz = maxZ - minZ;
+        chunk.radius = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) / 2;
     }
 
     /**
-     * Converts an y coordinate on the screen to the corresponding y coordinate
-     * on this view window.
+     * Generates a test world of numChunksX by numChunksZ chunks, centered on
+     * the origin: rolling ground with a few boxes on it in each chunk.
+     * java game.collection.ChunkedWorld directory [numChunksX numChunksZ]
      */
-    public float convertFromScreenYToViewY(float y) {
-        return -y + bounds.y + bounds.height / 2;
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("Usage: ChunkedWorld directory [numChunksX numChunksZ]");
+            System.exit(1);
+        }
+        int numChunksX = (args.length == 3) ? Integer.parseInt(args[1]) : 32;
+        int numChunksZ = (args.length == 3) ? Integer.parseInt(args[2]) : 32;
+        generate(new File(args[0]), numChunksX, numChunksZ, 1000, 16, 8, 42);
     }
 
     /**
-     * Projects the specified vector to the screen.
+     * Generates a test world. Each chunk has ground made of groundSize by
+     * groundSize quads, and numBoxes boxes.
      */
-    public void project(Vector3D v) {
-        // project to view window
-        v.x = distanceToCamera * v.x / -v.z;
-        v.y = distanceToCamera * v.y / -v.z;
+    public static void generate(File directory, int numChunksX, int numChunksZ,
+            float chunkSize, int groundSize, int numBoxes, long seed)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        float originX = -numChunksX * chunkSize / 2;
+        float originZ = -numChunksZ * chunkSize / 2;
+        Random random = new Random(seed);
+        for (int j = 0; j < numChunksZ; j++) {
+            for (int i = 0; i < numChunksX; i++) {
+                IndexedMesh mesh = new IndexedMesh();
+                float x0 = originX + i * chunkSize;
+                float z0 = originZ + j * chunkSize;
+                addGround(mesh, x0, z0, chunkSize, groundSize);
+                for (int k = 0; k < numBoxes; k++) {
+                    float w = 50 + 100 * random.nextFloat();
+                    float d = 50 + 100 * random.nextFloat();
+                    float x = x0 + (chunkSize - w) * random.nextFloat();
+                    float z = z0 + (chunkSize - d) * random.nextFloat();
+                    float y = getGroundHeight(x + w / 2, z + d / 2) - 20;
+                    addBox(mesh, x, y, z, x + w, y + 50 + 250 * random.nextFloat(),
+                            z + d, new Color(random.nextInt(0x1000000)));
+                }
+                SceneFile.write(mesh, new File(directory, "chunk_" + i + "_" + j + ".h3d"));
+            }
+        }
 
-        // convert to screen coordinates
-        v.x = convertFromViewXToScreenX(v.x);
-        v.y = convertFromViewYToScreenY(v.y);
+        Properties index = new Properties();
+        index.setProperty("chunkSize", Float.toString(chunkSize));
+        index.setProperty("originX", Float.toString(originX));
+        index.setProperty("originZ", Float.toString(originZ));
+        index.setProperty("numChunksX", Integer.toString(numChunksX));
+        index.setProperty("numChunksZ", Integer.toString(numChunksZ));
+        FileOutputStream out = new FileOutputStream(new File(directory, INDEX_FILE));
+        try {
+            index.store(out, "ChunkedWorld");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static float getGroundHeight(float x, float z) {
+        return (float) (40 * Math.sin(x / 700) * Math.cos(z / 900));
+    }
+
+    private static void addGround(IndexedMesh mesh, float x0, float z0,
+            float size, int numQuads) {
+        int first = mesh.getNumVertices();
+        float step = size / numQuads;
+        for (int j = 0; j <= numQuads; j++) {
+            for (int i = 0; i <= numQuads; i++) {
+                float x = x0 + i * step;
+                float z = z0 + j * step;
+                mesh.addVertex(x, getGroundHeight(x, z), z);
+            }
+        }
+        int row = numQuads + 1;
+        for (int j = 0; j < numQuads; j++) {
+            for (int i = 0; i < numQuads; i++) {
+                int v = first + j * row + i;
+                // counter-clockwise seen from above
+                int shade = 0x60 + ((i + j) & 1) * 0x10;
+                mesh.addPolygon(new int[] { v, v + row, v + row + 1, v + 1 },
+                        new Color(0x20, shade, 0x20));
+            }
+        }
+    }
+
+    private static void addBox(IndexedMesh mesh, float x0, float y0, float z0,
+            float x1, float y1, float z1, Color color) {
+        int v = mesh.getNumVertices();
+        mesh.addVertex(x0, y0, z0);
+        mesh.addVertex(x1, y0, z0);
+        mesh.addVertex(x1, y0, z1);
+        mesh.addVertex(x0, y0, z1);
+        mesh.addVertex(x0, y1, z0);
+        mesh.addVertex(x1, y1, z0);
+        mesh.addVertex(x1, y1, z1);
+        mesh.addVertex(x0, y1, z1);
+        // counter-clockwise seen from outside; no bottom
+        mesh.addPolygon(new int[] { v + 4, v + 7, v + 6, v + 5 }, color);
+        mesh.addPolygon(new int[] { v + 3, v + 2, v + 6, v + 7 }, color);
+        mesh.addPolygon(new int[] { v + 1, v, v + 4, v + 5 }, color);
+        mesh.addPolygon(new int[] { v + 2, v + 1, v + 5, v + 6 }, color);
+        mesh.addPolygon(new int[] { v, v + 3, v + 7, v + 4 }, color);
     }
 }
 //-----------------------------------------------------------------
 
+
 /**
  * The Transform3D class represents a rotation and translation.
+ * <p>
+ * The three rotations are combined into one cached 3x3 matrix, so a vertex is
+ * transformed with 9 multiplies instead of three chained rotations. The matrix
+ * is recalculated only after the angles or the location change.
  */
 class Transform3D {
 
@@ -1657,6 +7806,22 @@ class Transform3D {
 
     private float sinAngleZ;
 
+    // rotation matrix of add(): rotate around x, then z, then y. Its
+    // transpose is the rotation of subtract().
+    private float m00, m01, m02, m10, m11, m12, m20, m21, m22;
+
+    // translation of subtract(): -transpose(m) * location
+    private float tx, ty, tz;
+
+    private boolean rotationChanged = true;
+
+    // the location the translation was calculated for
+    private float matrixX = Float.NaN;
+
+    private float matrixY;
+
+    private float matrixZ;
+
     /**
      * Creates a new Transform3D with no translation or rotation.
      */
@@ -1684,6 +7849,35 @@ class Transform3D {
         return new Transform3D(this);
     }
 
+    /**
+     * Checks if this Transform3D is equal to the specified Object. They are
+     * equal only if the specified Object is a Transform3D with the same
+     * location and the same angles.
+     */
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Transform3D)) {
+            return false;
+        }
+        Transform3D v = (Transform3D) obj;
+        return location.equals(v.location)
+                && cosAngleX == v.cosAngleX && sinAngleX == v.sinAngleX
+                && cosAngleY == v.cosAngleY && sinAngleY == v.sinAngleY
+                && cosAngleZ == v.cosAngleZ && sinAngleZ == v.sinAngleZ;
+    }
+
+    /**
+     * Returns a hash code consistent with equals().
+     */
+    public int hashCode() {
+        int hash = location.hashCode();
+        hash = 31 * hash + Float.floatToIntBits(cosAngleX + 0f);
+        hash = 31 * hash + Float.floatToIntBits(sinAngleX + 0f);
+        hash = 31 * hash + Float.floatToIntBits(cosAngleY + 0f);
+        hash = 31 * hash + Float.floatToIntBits(sinAngleY + 0f);
+        hash = 31 * hash + Float.floatToIntBits(cosAngleZ + 0f);
+        return 31 * hash + Float.floatToIntBits(sinAngleZ + 0f);
+    }
+
     /**
      * Sets this Transform3D to the specified Transform3D.
      */
@@ -1695,6 +7889,7 @@ class Transform3D {
         this.sinAngleY = v.sinAngleY;
         this.cosAngleZ = v.cosAngleZ;
         this.sinAngleZ = v.sinAngleZ;
+        rotationChanged = true;
     }
 
     /**
@@ -1743,16 +7938,19 @@ class Transform3D {
     public void setAngleX(float angleX) {
         cosAngleX = (float) Math.cos(angleX);
         sinAngleX = (float) Math.sin(angleX);
+        rotationChanged = true;
     }
 
     public void setAngleY(float angleY) {
         cosAngleY = (float) Math.cos(angleY);
         sinAngleY = (float) Math.sin(angleY);
+        rotationChanged = true;
     }
 
     public void setAngleZ(float angleZ) {
         cosAngleZ = (float) Math.cos(angleZ);
         sinAngleZ = (float) Math.sin(angleZ);
+        rotationChanged = true;
     }
 
     public void setAngle(float angleX, float angleY, float angleZ) {
@@ -1785,6 +7983,159 @@ class Transform3D {
         rotateAngleZ(angleZ);
     }
 
+    /**
+     * Sets this Transform3D between from (t = 0) and to (t = 1). Angles are
+     * interpolated the short way around.
+     */
+    public void setToInterpolated(Transform3D from, Transform3D to, float t) {
+        // going through the angles can change the last bit of the sines and
+        // cosines, so a camera that isn't moving is copied exactly
+        if (t >= 1 || from.equals(to)) {
+            setTo(to);
+            return;
+        }
+        Vector3D a = from.location;
+        Vector3D b = to.location;
+        location.setTo(a.x + (b.x - a.x) * t, a.y + (b.y - a.y) * t,
+                a.z + (b.z - a.z) * t);
+        setAngle(interpolateAngle(from.getAngleX(), to.getAngleX(), t),
+                interpolateAngle(from.getAngleY(), to.getAngleY(), t),
+                interpolateAngle(from.getAngleZ(), to.getAngleZ(), t));
+    }
+
+    private static float interpolateAngle(float a, float b, float t) {
+        float delta = b - a;
+        if (delta > Math.PI) {
+            delta -= 2 * Math.PI;
+        } else if (delta < -Math.PI) {
+            delta += 2 * Math.PI;
+        }
+        return a + delta * t;
+    }
+
+    /**
+     * Recalculates the cached matrix if the angles or the location have
+     * changed since it was last calculated.
+     */
+    public void updateMatrix() {
+        if (rotationChanged) {
+            float cx = cosAngleX;
+            float sx = sinAngleX;
+            float cy = cosAngleY;
+            float sy = sinAngleY;
+            float cz = cosAngleZ;
+            float sz = sinAngleZ;
+            m00 = cy * cz;
+            m01 = sy * sx - cy * sz * cx;
+            m02 = cy * sz * sx + sy * cx;
+            m10 = sz;
+            m11 = cz * cx;
+            m12 = -cz * sx;
+            m20 = -sy * cz;
+            m21 = sy * sz * cx + cy * sx;
+            m22 = cy * cx - sy * sz * sx;
+            rotationChanged = false;
+            matrixX = Float.NaN;
+        }
+        if (location.x != matrixX || location.y != matrixY
+                || location.z != matrixZ) {
+            matrixX = location.x;
+            matrixY = location.y;
+            matrixZ = location.z;
+            tx = -(m00 * matrixX + m10 * matrixY + m20 * matrixZ);
+            ty = -(m01 * matrixX + m11 * matrixY + m21 * matrixZ);
+            tz = -(m02 * matrixX + m12 * matrixY + m22 * matrixZ);
+        }
+    }
+
+    /**
+     * Rotates, then translates the specified vector. Same as v.add(this).
+     */
+    public void transform(Vector3D v) {
+        rotate(v);
+        v.add(location);
+    }
+
+    /**
+     * Translates, then rotates the specified vector by the opposite of this
+     * transform. Same as v.subtract(this).
+     */
+    public void inverseTransform(Vector3D v) {
+        updateMatrix();
+        float x = v.x;
+        float y = v.y;
+        float z = v.z;
+        v.x = m00 * x + m10 * y + m20 * z + tx;
+        v.y = m01 * x + m11 * y + m21 * z + ty;
+        v.z = m02 * x + m12 * y + m22 * z + tz;
+    }
+
+    /**
+     * Rotates the specified vector. Same as v.addRotation(this).
+     */
+    public void rotate(Vector3D v) {
+        updateMatrix();
+        float x = v.x;
+        float y = v.y;
+        float z = v.z;
+        v.x = m00 * x + m01 * y + m02 * z;
+        v.y = m10 * x + m11 * y + m12 * z;
+        v.z = m20 * x + m21 * y + m22 * z;
+    }
+
+    /**
+     * Rotates the specified vector by the opposite angle. Same as
+     * v.subtractRotation(this).
+     */
+    public void inverseRotate(Vector3D v) {
+        updateMatrix();
+        float x = v.x;
+        float y = v.y;
+        float z = v.z;
+        v.x = m00 * x + m10 * y + m20 * z;
+        v.y = m01 * x + m11 * y + m21 * z;
+        v.z = m02 * x + m12 * y + m22 * z;
+    }
+
+    /**
+     * Writes the matrix of transform() to dest at offset, as 12 floats: the
+     * rotation matrix row by row, then the location.
+     */
+    public void getMatrix(float[] dest, int offset) {
+        updateMatrix();
+        dest[offset] = m00;
+        dest[offset + 1] = m01;
+        dest[offset + 2] = m02;
+        dest[offset + 3] = m10;
+        dest[offset + 4] = m11;
+        dest[offset + 5] = m12;
+        dest[offset + 6] = m20;
+        dest[offset + 7] = m21;
+        dest[offset + 8] = m22;
+        dest[offset + 9] = location.x;
+        dest[offset + 10] = location.y;
+        dest[offset + 11] = location.z;
+    }
+
+    /**
+     * Writes the matrix of inverseTransform() to dest, in the same layout as
+     * getMatrix(): the rotation row by row, then the translation.
+     */
+    public void getInverseMatrix(float[] dest) {
+        updateMatrix();
+        dest[0] = m00;
+        dest[1] = m10;
+        dest[2] = m20;
+        dest[3] = m01;
+        dest[4] = m11;
+        dest[5] = m21;
+        dest[6] = m02;
+        dest[7] = m12;
+        dest[8] = m22;
+        dest[9] = tx;
+        dest[10] = ty;
+        dest[11] = tz;
+    }
 }
 //-----------------------------------------------------------------
 
@@ -1831,6 +8182,8 @@ class InputManager implements KeyListener, MouseListener, MouseMotionListener, M
 
     private GameAction[] mouseActions = new GameAction[NUM_MOUSE_CODES];
 
+    private InputSnapshot snapshot = new InputSnapshot();
+
     private Point mouseLocation;
 
     private Point centerLocation;
@@ -1908,6 +8261,7 @@ class InputManager implements KeyListener, MouseListener, MouseMotionListener, M
      */
     public void mapToKey(GameAction gameAction, int keyCode) {
         keyActions[keyCode] = gameAction;
+        snapshot.add(gameAction);
     }
 
     /**
@@ -1918,6 +8272,17 @@ class InputManager implements KeyListener, MouseListener, MouseMotionListener, M
      */
     public void mapToMouse(GameAction gameAction, int mouseCode) {
         mouseActions[mouseCode] = gameAction;
+        snapshot.add(gameAction);
+    }
+
+    /**
+     * Takes a snapshot of every mapped GameAction. Call this once per frame
+     * from the game loop, and read the input of the frame from the returned
+     * snapshot, which is reused by the next call.
+     */
+    public InputSnapshot takeSnapshot() {
+        snapshot.capture();
+        return snapshot;
     }
 
     /**
@@ -2032,7 +8397,7 @@ class InputManager implements KeyListener, MouseListener, MouseMotionListener, M
      * <p>
      * Note that use of the Robot class may not be available on all platforms.
      */
-    private synchronized void recenterMouse() {
+    private void recenterMouse() {
         if (robot != null && comp.isShowing()) {
             centerLocation.x = comp.getWidth() / 2;
             centerLocation.y = comp.getHeight() / 2;
@@ -2138,8 +8503,9 @@ class InputManager implements KeyListener, MouseListener, MouseMotionListener, M
         mouseMoved(e);
     }
 
-    // from the MouseMotionListener interface
-    public synchronized void mouseMoved(MouseEvent e) {
+    // from the MouseMotionListener interface. Like the other listener
+    // methods, this only runs on the AWT event thread, so it doesn't lock.
+    public void mouseMoved(MouseEvent e) {
         // this event is from re-centering the mouse - ignore it
         if (isRecentering && centerLocation.x == e.getX()
                 && centerLocation.y == e.getY()) {
@@ -2173,8 +8539,7 @@ class InputManager implements KeyListener, MouseListener, MouseMotionListener, M
             gameAction = mouseActions[codePos];
         }
         if (gameAction != null) {
-            gameAction.press(Math.abs(amount));
-            gameAction.release();
+            gameAction.tap(Math.abs(amount));
         }
     }
 
@@ -2198,6 +8563,14 @@ class ScreenManager {
         device = environment.getDefaultScreenDevice();
     }
 
+    /**
+     * Creates a ScreenManager for a subclass that doesn't use a
+     * GraphicsDevice, and must override every method that does.
+     */
+    protected ScreenManager(GraphicsDevice device) {
+        this.device = device;
+    }
+
     /**
      * Returns a list of compatible display modes for the default device on the
      * system.
@@ -2315,6 +8688,15 @@ class ScreenManager {
         }
     }
 
+    /**
+     * Releases a graphics context from getGraphics() once the frame has been
+     * drawn. A BufferStrategy hands out a new one for each frame, so this
+     * disposes of it.
+     */
+    public void releaseGraphics(Graphics2D g) {
+        g.dispose();
+    }
+
     /**
      * Updates the display.
      */
@@ -2390,6 +8772,134 @@ class ScreenManager {
 }
 //-----------------------------------------------------------------
 
+/**
+ * The HeadlessScreenManager class is a ScreenManager that draws into an
+ * offscreen BufferedImage instead of a full screen window, so games can run
+ * with java.awt.headless=true, for example to measure rendering performance
+ * on a machine with no display. There is no window, so there is no input.
+ */
+class HeadlessScreenManager extends ScreenManager {
+
+    private static final DisplayMode DEFAULT_MODE = new DisplayMode(800, 600,
+            32, DisplayMode.REFRESH_RATE_UNKNOWN);
+
+    private BufferedImage image;
+    private Graphics2D graphics;
+    private int numFrames;
+
+    public HeadlessScreenManager() {
+        super(null);
+    }
+
+    /**
+     * Returns the default mode. Any mode can be used offscreen.
+     */
+    public DisplayMode[] getCompatibleDisplayModes() {
+        return new DisplayMode[] { DEFAULT_MODE };
+    }
+
+    /**
+     * Returns the first mode in the list, since any mode can be used
+     * offscreen.
+     */
+    public DisplayMode findFirstCompatibleMode(DisplayMode modes[]) {
+        return (modes.length > 0) ? modes[0] : DEFAULT_MODE;
+    }
+
+    public DisplayMode getCurrentDisplayMode() {
+        if (image == null) {
+            return DEFAULT_MODE;
+        }
+        return new DisplayMode(image.getWidth(), image.getHeight(), 32,
+                DisplayMode.REFRESH_RATE_UNKNOWN);
+    }
+
+    /**
+     * Creates the offscreen image, the size of the specified display mode,
+     * or 800x600 if it is null.
+     */
+    public void setFullScreen(DisplayMode displayMode) {
+        if (displayMode == null) {
+            displayMode = DEFAULT_MODE;
+        }
+        image = new BufferedImage(displayMode.getWidth(),
+                displayMode.getHeight(), BufferedImage.TYPE_INT_RGB);
+        if (graphics != null) {
+            graphics.dispose();
+            graphics = null;
+        }
+    }
+
+    /**
+     * Gets the graphics context for the offscreen image. The same one is
+     * returned every frame, so drawing a frame creates no objects; draw()
+     * sets everything it depends on each frame anyway.
+     */
+    public Graphics2D getGraphics() {
+        if (image == null) {
+            return null;
+        }
+        if (graphics == null) {
+            graphics = image.createGraphics();
+        }
+        return graphics;
+    }
+
+    /**
+     * Keeps the graphics context for the next frame.
+     */
+    public void releaseGraphics(Graphics2D g) {
+        // reused
+    }
+
+    /**
+     * Counts a finished frame. There is nothing to show.
+     */
+    public void update() {
+        numFrames++;
+    }
+
+    /**
+     * Returns null, since there is no window.
+     */
+    public JFrame getFullScreenWindow() {
+        return null;
+    }
+
+    public int getWidth() {
+        return (image != null) ? image.getWidth() : 0;
+    }
+
+    public int getHeight() {
+        return (image != null) ? image.getHeight() : 0;
+    }
+
+    /**
+     * Gets the offscreen image, which holds the last frame drawn.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Gets the number of frames shown with update().
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public void restoreScreen() {
+        // nothing to restore
+    }
+
+    public BufferedImage createCompatibleImage(int w, int h, int transparancy) {
+        int type = (transparancy == Transparency.OPAQUE)
+                ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        return new BufferedImage(w, h, type);
+    }
+}
+//-----------------------------------------------------------------
+
 interface Transformable {
     public void add(Vector3D u);
     public void subtract(Vector3D u);